@@ -0,0 +1,383 @@
+package icecube.daq.trigger.algorithm;
+
+import java.util.Arrays;
+
+/**
+ * Bounds on the distances between the DOMs of a DOMGeometryTable, taken
+ * from their distances to a few reference DOMs.
+ *
+ * By the triangle inequality the distance between two DOMs is at least
+ * the difference, and at most the sum, of their distances to any other
+ * DOM.  Every DOM therefore keeps its distance to up to REFERENCES
+ * reference DOMs, each picked as far as possible from the ones before it,
+ * and any DOM pair can be bounded without looking the pair up.  Placing a
+ * DOM costs one distance per reference, which is not kept in the table.
+ * The DOMs are also sorted into a grid of cubic cells over their
+ * distances to the first three references, so the DOMs which may be near
+ * a DOM can be found without looking at every DOM.
+ *
+ * The registry distances are Euclidean distances rounded to doubles, so
+ * they only break the triangle inequality by a few units in the last
+ * place of the largest distance.  Every bound is widened by a slack of a
+ * billionth of the largest reference distance, which covers that
+ * rounding many times over.  mayBeWithin() therefore never rejects a pair
+ * whose table distance is within the limit, and maxDistance() is never
+ * below a table distance.  Nothing else is assumed about the DOMs:
+ * references which lie close together only make the bounds looser.
+ */
+final class DOMDistanceBounds
+{
+    /** Most reference DOMs */
+    static final int REFERENCES = 8;
+
+    /** Rounding allowance, relative to the largest reference distance */
+    private static final double ROUNDING = 1.0E-9;
+    /** Smallest grid cell side, relative to the largest reference distance */
+    private static final double MIN_CELL = 1.0E-3;
+
+    private final DOMGeometryTable geometry;
+
+    /** Reference DOM indices */
+    private final int[] refs = new int[REFERENCES];
+    /** Number of references in use */
+    private int numRefs;
+    /** Distances from each DOM to the references, REFERENCES per DOM */
+    private double[] refDistance = new double[0];
+    /** Largest distance from each reference to a placed DOM */
+    private final double[] farthest = new double[REFERENCES];
+    /** Allowance for rounding added to every bound */
+    private double slack;
+
+    /** Smallest grid cell side asked for */
+    private final double minCellSize;
+    /** Side of the grid cells */
+    private double cellSize;
+    /** Cell keys of the open-addressed grid table */
+    private long[] cellKeys = new long[0];
+    /**
+     * Count and then DOM indices by increasing index for the cell in the
+     * same slot, <tt>null</tt> for empty slots
+     */
+    private int[][] cells = new int[0][];
+    /** Number of cells holding DOMs */
+    private int numCells;
+
+    /** Number of DOM indices which have been placed */
+    private int numPlaced;
+    /** Number of DOMs indexed when the references were chosen */
+    private int numChosen;
+
+    /**
+     * Create the bounds for a geometry table.
+     *
+     * @param geometry DOM geometry
+     * @param minCellSize smallest side of the grid cells, best the usual
+     *                    markNear() distance
+     */
+    DOMDistanceBounds(DOMGeometryTable geometry, double minCellSize)
+    {
+        this.geometry = geometry;
+        this.minCellSize = minCellSize;
+    }
+
+    /**
+     * Place every DOM indexed so far.  The references are chosen again
+     * whenever the number of DOMs has doubled, so they stay spread over
+     * the DOMs seen so far.
+     *
+     * @param numDoms number of indexed DOMs
+     */
+    void update(int numDoms)
+    {
+        if (numDoms >= 2 * numChosen) {
+            choose(numDoms);
+        } else if (numPlaced < numDoms) {
+            grow(numDoms);
+            for (int dom = numPlaced; dom < numDoms; dom++) {
+                for (int r = 0; r < numRefs; r++) {
+                    setDistance(dom, r, tableDistance(refs[r], dom));
+                }
+                addToCell(dom);
+            }
+            numPlaced = numDoms;
+        }
+    }
+
+    /**
+     * Has a DOM been placed?
+     *
+     * @param dom DOM index
+     *
+     * @return <tt>true</tt> if the DOM may be passed to the bounds
+     */
+    boolean isPlaced(int dom)
+    {
+        return dom < numPlaced;
+    }
+
+    /**
+     * Can two placed DOMs be within a distance of each other?
+     *
+     * @param a first DOM index
+     * @param b second DOM index
+     * @param dist distance in meters
+     *
+     * @return <tt>false</tt> only if the table distance is surely larger
+     */
+    boolean mayBeWithin(int a, int b, double dist)
+    {
+        final double limit = dist + slack;
+        final int baseA = a * REFERENCES;
+        final int baseB = b * REFERENCES;
+        for (int r = 0; r < numRefs; r++) {
+            if (Math.abs(refDistance[baseA + r] -
+                         refDistance[baseB + r]) > limit)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Bound the distance from a placed DOM to every other placed DOM.
+     *
+     * @param dom DOM index
+     *
+     * @return at least the largest table distance from the DOM, in meters
+     */
+    double maxDistance(int dom)
+    {
+        final int base = dom * REFERENCES;
+        double bound = Double.POSITIVE_INFINITY;
+        for (int r = 0; r < numRefs; r++) {
+            bound = Math.min(bound, refDistance[base + r] + farthest[r]);
+        }
+        return bound + slack;
+    }
+
+    /**
+     * Set the bits of the placed DOMs in an index range which may be
+     * within a distance of a DOM, giving up once there are too many.  The
+     * DOM itself is left out.
+     *
+     * @param dom placed DOM index
+     * @param dist distance in meters
+     * @param from lowest DOM index to mark
+     * @param to DOM index after the highest one to mark
+     * @param row bitset over DOM indices, holding at least <tt>to</tt> bits
+     * @param maxNear most DOMs to mark
+     *
+     * @return number of DOMs marked, or -1 if there were more than
+     *         <tt>maxNear</tt>
+     */
+    int markNear(int dom, double dist, int from, int to, long[] row,
+                 int maxNear)
+    {
+        final int base = dom * REFERENCES;
+        final double radius = dist + slack;
+        final int lo0 = cell(refDistance[base] - radius);
+        final int hi0 = cell(refDistance[base] + radius);
+        final int lo1 = cell(refDistance[base + 1] - radius);
+        final int hi1 = cell(refDistance[base + 1] + radius);
+        final int lo2 = cell(refDistance[base + 2] - radius);
+        final int hi2 = cell(refDistance[base + 2] + radius);
+
+        int num = 0;
+        for (int i0 = lo0; i0 <= hi0; i0++) {
+            for (int i1 = lo1; i1 <= hi1; i1++) {
+                for (int i2 = lo2; i2 <= hi2; i2++) {
+                    final int[] list = cells[cellSlot(cellKey(i0, i1, i2))];
+                    if (list == null) {
+                        continue;
+                    }
+
+                    int i = Arrays.binarySearch(list, 1, list[0] + 1, from);
+                    if (i < 0) {
+                        i = -i - 1;
+                    }
+                    for (; i <= list[0]; i++) {
+                        final int other = list[i];
+                        if (other >= to) {
+                            break;
+                        }
+                        if (other != dom && mayBeWithin(dom, other, dist)) {
+                            if (++num > maxNear) {
+                                return -1;
+                            }
+                            row[other >>> 6] |= 1L << other;
+                        }
+                    }
+                }
+            }
+        }
+
+        return num;
+    }
+
+    private double tableDistance(int a, int b)
+    {
+        return (a == b ? 0.0 : geometry.distanceOnce(a, b));
+    }
+
+    private void setDistance(int dom, int r, double dist)
+    {
+        refDistance[dom * REFERENCES + r] = dist;
+        if (dist > farthest[r]) {
+            farthest[r] = dist;
+            slack = Math.max(slack, ROUNDING * dist);
+        }
+    }
+
+    /**
+     * Pick the references and place every DOM.  The first reference is
+     * the DOM farthest from an arbitrary one, and each further one the DOM
+     * farthest from all references before it.
+     */
+    private void choose(int numDoms)
+    {
+        numChosen = numDoms;
+        numPlaced = 0;
+        numRefs = 0;
+        slack = 0.0;
+        Arrays.fill(farthest, 0.0);
+        Arrays.fill(cells, null);
+        numCells = 0;
+        if (numDoms == 0) {
+            return;
+        }
+        grow(numDoms);
+        Arrays.fill(refDistance, 0, numDoms * REFERENCES, 0.0);
+
+        final double[] gap = new double[numDoms];
+        for (int dom = 1; dom < numDoms; dom++) {
+            gap[dom] = tableDistance(0, dom);
+        }
+        int next = farthest(gap);
+
+        Arrays.fill(gap, Double.POSITIVE_INFINITY);
+        while (numRefs < REFERENCES) {
+            final int r = numRefs++;
+            refs[r] = next;
+            for (int dom = 0; dom < numDoms; dom++) {
+                final double dist = tableDistance(refs[r], dom);
+                setDistance(dom, r, dist);
+                gap[dom] = Math.min(gap[dom], dist);
+            }
+
+            next = farthest(gap);
+            if (gap[next] == 0.0) {
+                // every DOM is at one of the references
+                break;
+            }
+        }
+
+        double spread = 0.0;
+        for (int r = 0; r < numRefs; r++) {
+            spread = Math.max(spread, farthest[r]);
+        }
+        cellSize = Math.max(minCellSize, MIN_CELL * spread);
+        if (cellSize == 0.0) {
+            cellSize = 1.0;
+        }
+
+        for (int dom = 0; dom < numDoms; dom++) {
+            addToCell(dom);
+        }
+        numPlaced = numDoms;
+    }
+
+    private void addToCell(int dom)
+    {
+        if (numCells * 2 >= cells.length) {
+            growCells();
+        }
+
+        final int base = dom * REFERENCES;
+        final long key = cellKey(cell(refDistance[base]),
+                                 cell(refDistance[base + 1]),
+                                 cell(refDistance[base + 2]));
+        final int slot = cellSlot(key);
+        int[] list = cells[slot];
+        if (list == null) {
+            list = new int[8];
+            cellKeys[slot] = key;
+            cells[slot] = list;
+            numCells++;
+        } else if (list[0] + 1 == list.length) {
+            list = Arrays.copyOf(list, list.length * 2);
+            cells[slot] = list;
+        }
+        list[++list[0]] = dom;
+    }
+
+    /**
+     * Find the slot holding a cell, or the empty slot where it belongs.
+     */
+    private int cellSlot(long key)
+    {
+        final int mask = cells.length - 1;
+        int slot = (int) (key >>> 40) & mask;
+        while (cells[slot] != null && cellKeys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void growCells()
+    {
+        final long[] oldKeys = cellKeys;
+        final int[][] oldCells = cells;
+
+        final int len = Math.max(64, oldCells.length * 2);
+        cellKeys = new long[len];
+        cells = new int[len][];
+        for (int i = 0; i < oldCells.length; i++) {
+            if (oldCells[i] != null) {
+                final int slot = cellSlot(oldKeys[i]);
+                cellKeys[slot] = oldKeys[i];
+                cells[slot] = oldCells[i];
+            }
+        }
+    }
+
+    private int cell(double dist)
+    {
+        return (int) Math.floor(dist / cellSize);
+    }
+
+    /**
+     * Pack cell coordinates into a key.  The coordinates stay below 2^20
+     * while the DOMs lie within the spread seen when the references were
+     * chosen; cells which share a key farther out only share a list, and
+     * markNear() checks every DOM it finds anyway.  The packed value is
+     * multiplied by an odd constant, which keeps keys unique but spreads
+     * neighbouring cells over the high bits used to pick a slot.
+     */
+    private static long cellKey(int c0, int c1, int c2)
+    {
+        final long packed = ((long) (c0 & 0x1fffff) << 42) |
+            ((long) (c1 & 0x1fffff) << 21) | (c2 & 0x1fffff);
+        return packed * 0x9e3779b97f4a7c15L;
+    }
+
+    private static int farthest(double[] values)
+    {
+        int idx = 0;
+        for (int i = 1; i < values.length; i++) {
+            if (values[i] > values[idx]) {
+                idx = i;
+            }
+        }
+        return idx;
+    }
+
+    private void grow(int numDoms)
+    {
+        if (refDistance.length < numDoms * REFERENCES) {
+            final int len = Math.max(numDoms, 2 * refDistance.length /
+                                     REFERENCES);
+            refDistance = Arrays.copyOf(refDistance, len * REFERENCES);
+        }
+    }
+}
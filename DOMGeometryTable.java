@@ -0,0 +1,331 @@
+package icecube.daq.trigger.algorithm;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Pairwise DOM geometry used by the FaintParticleTrigger pair loops.
+ *
+ * Every DOM seen by the trigger gets a compact <tt>int</tt> index.  The
+ * distance and the direction between two indexed DOMs are computed by the
+ * subclass the first time a pair is asked for and kept at full
+ * <tt>double</tt> precision, so each DOM pair is only computed once for
+ * the lifetime of the table and the cuts see exactly the values the DOM
+ * registry returns.
+ *
+ * Pairs are stored by their position in a lower-triangular layout, but
+ * the layout is split into chunks which are only filled once one of
+ * their pairs is asked for, and directions are only filled for chunks
+ * whose directions are asked for.  Memory therefore follows the pairs the
+ * trigger actually looks at instead of every pair of every indexed DOM.
+ *
+ * A chunk is filled in a private array with every pair of the DOMs
+ * indexed so far, and only then published through an atomic array.  A
+ * published chunk is never written again; a pair of a DOM indexed later
+ * is added by publishing a filled copy.  Threads which evaluate windows
+ * in parallel therefore only ever read complete values.
+ */
+abstract class DOMGeometryTable
+{
+    /** Index returned for hits whose DOM is not known */
+    static final int NO_DOM = -1;
+
+    /** Number of DOM slots allocated before the first resize */
+    private static final int INITIAL_DOMS = 128;
+
+    /** log2 of the number of pairs in a chunk, which is filled at once */
+    private static final int CHUNK_SHIFT = 4;
+    private static final int CHUNK_PAIRS = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_PAIRS - 1;
+
+    /** Direction values kept for each pair */
+    private static final int DIRECTION_VALUES = 4;
+
+    private int capacity;
+    private int numDoms;
+
+    /** Distance in meters, NaN until computed */
+    private AtomicReferenceArray<double[]> distance;
+    /**
+     * Zenith and azimuth in degrees, NaN until computed: from the lower to
+     * the higher DOM index, then from the higher to the lower one
+     */
+    private AtomicReferenceArray<double[]> direction;
+
+    DOMGeometryTable()
+    {
+        this(INITIAL_DOMS);
+    }
+
+    /**
+     * Create a table with room for the pairs of a number of DOMs.
+     * Subclasses which look up the geometry elsewhere can pass 0.
+     *
+     * @param initialDoms number of DOM slots
+     */
+    DOMGeometryTable(int initialDoms)
+    {
+        capacity = initialDoms;
+        final int chunks = numChunks(initialDoms);
+        distance = new AtomicReferenceArray<double[]>(chunks);
+        direction = new AtomicReferenceArray<double[]>(chunks);
+    }
+
+    /**
+     * Compute the distance between two indexed DOMs.
+     *
+     * @param a first DOM index
+     * @param b second DOM index
+     *
+     * @return distance in meters
+     */
+    abstract double computeDistance(int a, int b);
+
+    /**
+     * Compute the direction from one indexed DOM to another.
+     *
+     * @param from index of the starting DOM
+     * @param to index of the end DOM
+     *
+     * @return zenith and azimuth in radians
+     */
+    abstract double[] computeDirection(int from, int to);
+
+    /**
+     * Give the next DOM an index, making room for its pairs.
+     *
+     * @return new DOM index
+     */
+    final int addDom()
+    {
+        if (numDoms == capacity) {
+            grow(Math.max(capacity * 2, INITIAL_DOMS));
+        }
+        return numDoms++;
+    }
+
+    /**
+     * Make room for the pairs of a known number of DOMs, so the table is
+     * not resized while it is indexed.
+     *
+     * @param numDoms expected number of DOMs
+     */
+    final void reserve(int numDoms)
+    {
+        if (numDoms > capacity) {
+            grow(numDoms);
+        }
+    }
+
+    /**
+     * Number of DOMs which have been given an index.
+     *
+     * @return number of indexed DOMs
+     */
+    int size()
+    {
+        return numDoms;
+    }
+
+    /**
+     * Distance between two different DOMs.
+     *
+     * @param a first DOM index
+     * @param b second DOM index
+     *
+     * @return distance in meters
+     */
+    double distance(int a, int b)
+    {
+        final int p = pairIndex(a, b);
+        final int idx = p & CHUNK_MASK;
+
+        double[] chunk = distance.get(p >>> CHUNK_SHIFT);
+        if (chunk == null || chunk[idx] != chunk[idx]) {
+            chunk = fill(distance, p, 1);
+        }
+
+        return chunk[idx];
+    }
+
+    /**
+     * Distance between two different DOMs, for callers which need the pair
+     * only once.  A distance which is not in the table yet is computed but
+     * not stored, so no storage is allocated for it.
+     *
+     * @param a first DOM index
+     * @param b second DOM index
+     *
+     * @return distance in meters
+     */
+    double distanceOnce(int a, int b)
+    {
+        final int p = pairIndex(a, b);
+        final double[] chunk = distance.get(p >>> CHUNK_SHIFT);
+        if (chunk != null) {
+            final double dist = chunk[p & CHUNK_MASK];
+            if (dist == dist) {
+                return dist;
+            }
+        }
+        return computeDistance(a, b);
+    }
+
+    /**
+     * Zenith of the direction from one DOM to another.
+     *
+     * @param from index of the starting DOM
+     * @param to index of the end DOM
+     *
+     * @return zenith in degrees
+     */
+    double zenith(int from, int to)
+    {
+        return directionValue(from, to, 0);
+    }
+
+    /**
+     * Azimuth of the direction from one DOM to another.
+     *
+     * @param from index of the starting DOM
+     * @param to index of the end DOM
+     *
+     * @return azimuth in degrees
+     */
+    double azimuth(int from, int to)
+    {
+        return directionValue(from, to, 1);
+    }
+
+    /**
+     * Get the zenith (<tt>which</tt> 0) or azimuth (1) of a direction,
+     * computing the direction if it is not known yet.
+     */
+    private double directionValue(int from, int to, int which)
+    {
+        final int p = pairIndex(from, to);
+        final int idx = (p & CHUNK_MASK) * DIRECTION_VALUES +
+            (from < to ? 0 : 2) + which;
+
+        double[] chunk = direction.get(p >>> CHUNK_SHIFT);
+        if (chunk == null || chunk[idx] != chunk[idx]) {
+            chunk = fill(direction, p, DIRECTION_VALUES);
+        }
+
+        return chunk[idx];
+    }
+
+    /**
+     * Publish a copy of the chunk holding a pair, with every missing pair
+     * up to the last indexed DOM computed.  If two threads fill the same
+     * chunk at once, the one which loses the race fills the winning copy.
+     *
+     * @param chunks distance or direction chunks
+     * @param p pair index
+     * @param valuesPerPair 1 for distances, DIRECTION_VALUES for directions
+     *
+     * @return published chunk, holding the pair
+     */
+    private double[] fill(AtomicReferenceArray<double[]> chunks, int p,
+                          int valuesPerPair)
+    {
+        final int c = p >>> CHUNK_SHIFT;
+        final int first = c << CHUNK_SHIFT;
+        final int end = Math.min(first + CHUNK_PAIRS,
+                                 Math.max(pairCapacity(numDoms), p + 1));
+
+        while (true) {
+            final double[] old = chunks.get(c);
+            final double[] chunk;
+            if (old == null) {
+                chunk = new double[CHUNK_PAIRS * valuesPerPair];
+                Arrays.fill(chunk, Double.NaN);
+            } else {
+                chunk = old.clone();
+            }
+
+            //walk the pairs (a, b) with b < a in layout order
+            int a = rowOf(first);
+            int b = first - pairCapacity(a);
+            for (int q = first; q < end; q++) {
+                final int idx = (q & CHUNK_MASK) * valuesPerPair;
+                if (chunk[idx] != chunk[idx]) {
+                    if (valuesPerPair == 1) {
+                        chunk[idx] = computeDistance(a, b);
+                    } else {
+                        final double[] up = computeDirection(b, a);
+                        chunk[idx] = Math.toDegrees(up[0]);
+                        chunk[idx + 1] = Math.toDegrees(up[1]);
+                        final double[] down = computeDirection(a, b);
+                        chunk[idx + 2] = Math.toDegrees(down[0]);
+                        chunk[idx + 3] = Math.toDegrees(down[1]);
+                    }
+                }
+                if (++b == a) {
+                    a++;
+                    b = 0;
+                }
+            }
+
+            if (chunks.compareAndSet(c, old, chunk)) {
+                return chunk;
+            }
+        }
+    }
+
+    private void grow(int newCapacity)
+    {
+        capacity = newCapacity;
+        final int chunks = numChunks(capacity);
+
+        distance = growChunks(distance, chunks);
+        direction = growChunks(direction, chunks);
+    }
+
+    /**
+     * Position of an unordered DOM pair in the triangular layout.
+     */
+    static int pairIndex(int a, int b)
+    {
+        if (a > b) {
+            return (a * (a - 1) >>> 1) + b;
+        }
+        return (b * (b - 1) >>> 1) + a;
+    }
+
+    static int pairCapacity(int numDoms)
+    {
+        return numDoms * (numDoms - 1) >>> 1;
+    }
+
+    /**
+     * Higher DOM index of the pair at a position in the triangular layout.
+     */
+    private static int rowOf(int p)
+    {
+        int a = (int) ((1.0 + Math.sqrt(1.0 + 8.0 * p)) / 2.0);
+        while (pairCapacity(a) > p) {
+            a--;
+        }
+        while (pairCapacity(a + 1) <= p) {
+            a++;
+        }
+        return a;
+    }
+
+    private static int numChunks(int numDoms)
+    {
+        return (pairCapacity(numDoms) + CHUNK_MASK) >>> CHUNK_SHIFT;
+    }
+
+    private static AtomicReferenceArray<double[]>
+        growChunks(AtomicReferenceArray<double[]> chunks, int len)
+    {
+        AtomicReferenceArray<double[]> grown =
+            new AtomicReferenceArray<double[]>(len);
+        for (int c = 0; c < chunks.length(); c++) {
+            grown.set(c, chunks.get(c));
+        }
+        return grown;
+    }
+}
@@ -0,0 +1,185 @@
+package icecube.daq.trigger.algorithm;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Rolling hit rate of each DOM seen by a FaintParticleTrigger.
+ *
+ * Hits are counted per DOM index over fixed intervals of one second of
+ * hit time.  At the end of each interval the counts are folded into an
+ * exponentially weighted rate, so a hit only costs an array increment.
+ * The summary statistics are recomputed at the same time and kept for the
+ * monitoring thread, which never reads the per-DOM arrays.  The trigger
+ * uses the per-DOM rates to estimate how many hits a lookup through
+ * candidate DOMs would visit.
+ */
+final class DOMHitRates
+{
+    /** Counting interval in UTC ticks (one second) */
+    static final long INTERVAL_TICKS = 10000000000L;
+
+    /** Weight of the newest interval in the rolling rate */
+    private static final double WEIGHT = 0.25;
+
+    /** Number of power-of-two rate histogram bins, the last one is open */
+    static final int NUM_HISTOGRAM_BINS = 16;
+
+    private static final long NO_TIME = Long.MIN_VALUE;
+
+    /** hits on each DOM index in the current interval */
+    private int[] counts = new int[0];
+    /** rolling rate of each DOM index in Hz */
+    private double[] rates = new double[0];
+    /** has the DOM index been hit at all? */
+    private boolean[] seen = new boolean[0];
+
+    private long intervalStart = NO_TIME;
+
+    /** Summary of the rates after the last finished interval */
+    private volatile Summary summary = new Summary();
+
+    /**
+     * Count a hit.  Hits must be added in time order, by a single thread.
+     *
+     * @param dom DOM index
+     * @param time hit time in UTC ticks
+     */
+    void add(int dom, long time)
+    {
+        if (intervalStart == NO_TIME) {
+            intervalStart = time;
+        } else if (time - intervalStart >= INTERVAL_TICKS) {
+            fold((time - intervalStart) / INTERVAL_TICKS);
+        }
+
+        if (dom >= counts.length) {
+            final int len = Math.max(dom + 1, counts.length * 2);
+            counts = Arrays.copyOf(counts, len);
+            rates = Arrays.copyOf(rates, len);
+            seen = Arrays.copyOf(seen, len);
+        }
+        counts[dom]++;
+        seen[dom] = true;
+    }
+
+    /**
+     * Fold the counts of the finished interval, followed by
+     * <tt>intervals - 1</tt> empty ones, into the rates.
+     */
+    private void fold(long intervals)
+    {
+        final double hz = 1.0E10 / INTERVAL_TICKS;
+        final double decay =
+            Math.pow(1.0 - WEIGHT, Math.min(intervals - 1, 1000L));
+
+        Summary next = new Summary();
+        for (int dom = 0; dom < counts.length; dom++) {
+            if (!seen[dom]) {
+                continue;
+            }
+
+            final double rate = (rates[dom] +
+                                 WEIGHT * (counts[dom] * hz - rates[dom])) *
+                decay;
+            rates[dom] = rate;
+            counts[dom] = 0;
+
+            next.numDoms++;
+            next.totalRate += rate;
+            if (rate > next.maxRate) {
+                next.maxRate = rate;
+            }
+            next.histogram[bin(rate)]++;
+        }
+        next.intervals = summary.intervals + intervals;
+        summary = next;
+
+        intervalStart += intervals * INTERVAL_TICKS;
+    }
+
+    /**
+     * Get the histogram bin of a rate.  Bin 0 holds rates below 1 Hz, bin
+     * <tt>b</tt> holds <tt>[2^(b-1), 2^b)</tt> Hz and the last bin is open.
+     */
+    private static int bin(double rate)
+    {
+        final long hz = (long) rate;
+        final int b = 64 - Long.numberOfLeadingZeros(hz);
+        return Math.min(b, NUM_HISTOGRAM_BINS - 1);
+    }
+
+    /**
+     * Expected number of hits on some DOMs within a time span, from their
+     * rolling rates.  DOMs without a rate yet count as silent.  Must be
+     * called by the thread which adds the hits.
+     *
+     * @param doms DOM indices
+     * @param num number of DOM indices to use
+     * @param seconds length of the time span
+     *
+     * @return expected number of hits
+     */
+    double expectedHits(int[] doms, int num, double seconds)
+    {
+        double sum = 0.0;
+        for (int i = 0; i < num; i++) {
+            if (doms[i] < rates.length) {
+                sum += rates[doms[i]];
+            }
+        }
+        return sum * seconds;
+    }
+
+    /**
+     * Summed rate of all DOMs after the last finished interval.
+     *
+     * @return rate in Hz
+     */
+    double getTotalRate()
+    {
+        return summary.totalRate;
+    }
+
+    /**
+     * Forget every rate.
+     */
+    void clear()
+    {
+        Arrays.fill(counts, 0);
+        Arrays.fill(rates, 0.0);
+        Arrays.fill(seen, false);
+        intervalStart = NO_TIME;
+        summary = new Summary();
+    }
+
+    /**
+     * Add the rate statistics to a monitoring map.
+     *
+     * @param map monitoring map
+     */
+    void addTo(Map<String, Object> map)
+    {
+        final Summary sum = summary;
+
+        map.put("DOMRateIntervals", sum.intervals);
+        map.put("DOMRateDOMs", sum.numDoms);
+        map.put("DOMRateTotalHz", sum.totalRate);
+        map.put("DOMRateMeanHz",
+                sum.numDoms == 0 ? 0.0 : sum.totalRate / sum.numDoms);
+        map.put("DOMRateMaxHz", sum.maxRate);
+        map.put("DOMRateHistogram", sum.histogram.clone());
+    }
+
+    /**
+     * Rate statistics of one interval.  Never changed once published.
+     */
+    private static final class Summary
+    {
+        long intervals;
+        int numDoms;
+        double totalRate;
+        double maxRate;
+        final long[] histogram = new long[NUM_HISTOGRAM_BINS];
+    }
+}
@@ -0,0 +1,359 @@
+package icecube.daq.trigger.algorithm;
+
+import java.util.Arrays;
+
+/**
+ * Limits used to prune the FaintParticleTrigger pair search.
+ *
+ * Two hits inside one time window can only form a double if their DOMs
+ * are closer than <tt>double_velocity_max</tt> times the window length,
+ * and no DOM pair can pass <tt>double_velocity_min</tt> once the time
+ * difference exceeds the largest distance from the first DOM divided by
+ * that velocity.  This class answers the first test per pair when two
+ * hits meet in a window, and keeps a bound on the largest distance from
+ * each DOM.  For DOMs with few neighbours it also lists the neighbours by
+ * DOM index, so hits can be matched by looking up the candidate DOMs
+ * instead of scanning a whole window.
+ *
+ * None of them needs every DOM pair.  DOMDistanceBounds gives provable
+ * bounds on each DOM pair from the distances to a few reference DOMs, and
+ * its grid finds the DOMs which may be near a DOM.  A pair which the lower
+ * bound places out of reach is no neighbour; any other pair is decided by
+ * its table distance, which the velocity test reads next anyway.  Each
+ * pair is decided once and kept in two bitsets per DOM, which cost two
+ * bits per indexed DOM and are only allocated for DOMs which have been
+ * asked about.  Everything is extended lazily as the table indexes new
+ * DOMs.
+ *
+ * Both limits are padded by a small relative margin so that rounding can
+ * never prune a pair which the exact velocity test would accept.
+ */
+final class DOMNeighbourhood
+{
+    /** Relative padding applied to both limits */
+    private static final double MARGIN = 1.0E-6;
+
+    /**
+     * Most new DOMs which are checked one by one when a neighbour bitset
+     * is extended, instead of being looked up in the grid
+     */
+    private static final int FEW_DOMS = 256;
+
+    /** Most neighbours listed for a DOM */
+    static final int MAX_CANDIDATES = 256;
+
+    private final DOMGeometryTable geometry;
+    private final double velocityMin;
+    private final double velocityMax;
+    private final long windowTicks;
+
+    /** Neighbour distance in meters */
+    private final double reach;
+    /** Ticks per meter at the minimum velocity */
+    private final double slowness;
+
+    /** Distance bounds, used to avoid looking up every DOM pair */
+    private final DOMDistanceBounds bounds;
+
+    /** Number of DOM indices each distance bound has been extended to */
+    private int[] covered = new int[0];
+    /** Bitset of the DOMs each DOM has been decided against */
+    private long[][] decided = new long[0][];
+    /** Bitset of the decided DOMs which are neighbours of each DOM */
+    private long[][] rows = new long[0][];
+    /** DOMs found in the grid while a neighbour list is extended */
+    private long[] found = new long[0];
+    /** At least the largest distance from each DOM to any covered DOM */
+    private double[] maxDistance = new double[0];
+    /** Number of DOM indices each neighbour list has been extended to */
+    private int[] listed = new int[0];
+    /** Neighbours of each DOM by increasing index, if listed */
+    private int[][] candidates = new int[0][];
+    /** Number of listed neighbours, -1 once there are too many to list */
+    private int[] numCandidates = new int[0];
+
+    /**
+     * Create the limits for one trigger configuration.
+     *
+     * @param geometry DOM geometry
+     * @param velocityMin minimum double velocity in km/s
+     * @param velocityMax maximum double velocity in km/s
+     * @param windowTicks time window length in UTC ticks
+     * @param kmPerSec conversion from meters per tick to km/s
+     */
+    DOMNeighbourhood(DOMGeometryTable geometry, double velocityMin,
+                     double velocityMax, long windowTicks, double kmPerSec)
+    {
+        this.geometry = geometry;
+        this.velocityMin = velocityMin;
+        this.velocityMax = velocityMax;
+        this.windowTicks = windowTicks;
+
+        reach = velocityMax * windowTicks / kmPerSec * (1.0 + MARGIN);
+        if (velocityMin > 0.0) {
+            slowness = kmPerSec / velocityMin * (1.0 + MARGIN);
+        } else {
+            slowness = Double.POSITIVE_INFINITY;
+        }
+
+        bounds = new DOMDistanceBounds(geometry, reach);
+    }
+
+    /**
+     * Were these limits computed for the given geometry and parameters?
+     */
+    boolean isFor(DOMGeometryTable geometry, double velocityMin,
+                  double velocityMax, long windowTicks)
+    {
+        return this.geometry == geometry &&
+            this.velocityMin == velocityMin &&
+            this.velocityMax == velocityMax &&
+            this.windowTicks == windowTicks;
+    }
+
+    /**
+     * Bring the limits for a DOM up to date with every DOM indexed so far.
+     * This must be called before maxTimeDiff() or numCandidates() are used
+     * for the DOM.
+     *
+     * @param dom DOM index
+     */
+    void cover(int dom)
+    {
+        final int numDoms = geometry.size();
+        if (dom >= covered.length) {
+            growDoms(numDoms);
+        }
+
+        final int from = covered[dom];
+        if (from == numDoms) {
+            return;
+        }
+
+        bounds.update(numDoms);
+        maxDistance[dom] = bounds.maxDistance(dom);
+        covered[dom] = numDoms;
+    }
+
+    /**
+     * Extend the neighbour list of a DOM to every covered DOM, giving up
+     * as soon as there are too many to list.
+     */
+    private void list(int dom)
+    {
+        final int from = listed[dom];
+        final int to = covered[dom];
+        if (numCandidates[dom] < 0 || from == to) {
+            return;
+        }
+
+        if (to - from <= FEW_DOMS) {
+            for (int other = from; other < to; other++) {
+                if (isNeighbour(dom, other)) {
+                    addCandidate(dom, other);
+                    if (numCandidates[dom] < 0) {
+                        break;
+                    }
+                }
+            }
+            listed[dom] = to;
+            return;
+        }
+
+        //the grid decides every DOM in the range unless there are too many
+        final long[] row = row(dom, to);
+        final int words = (to + 63) >>> 6;
+        if (found.length < words) {
+            found = new long[row.length];
+        }
+        final int num = bounds.markNear(dom, reach, from, to, found,
+                                        MAX_CANDIDATES - numCandidates[dom]);
+        if (num < 0) {
+            Arrays.fill(found, from >>> 6, words, 0L);
+            candidates[dom] = null;
+            numCandidates[dom] = -1;
+            listed[dom] = to;
+            return;
+        }
+
+        final long[] done = decided[dom];
+        for (int w = from >>> 6; w < words; w++) {
+            long mask = -1L;
+            if (w == from >>> 6) {
+                mask &= -1L << from;
+            }
+            if (w == words - 1 && (to & 63) != 0) {
+                mask &= -1L >>> -to;
+            }
+
+            //the pairs the bounds left open are decided by their distance
+            long bits = found[w] & ~done[w];
+            found[w] = 0L;
+            while (bits != 0L) {
+                final int other = (w << 6) + Long.numberOfTrailingZeros(bits);
+                if (geometry.distanceOnce(dom, other) <= reach) {
+                    row[w] |= 1L << other;
+                }
+                bits &= bits - 1L;
+            }
+            done[w] |= mask;
+
+            bits = row[w] & mask;
+            while (bits != 0L && numCandidates[dom] >= 0) {
+                addCandidate(dom, (w << 6) + Long.numberOfTrailingZeros(bits));
+                bits &= bits - 1L;
+            }
+        }
+
+        listed[dom] = to;
+    }
+
+    /**
+     * Get the neighbour bitset of a DOM, making room for a number of DOM
+     * indices.
+     */
+    private long[] row(int dom, int numDoms)
+    {
+        final int words = (numDoms + 63) >>> 6;
+        long[] row = rows[dom];
+        if (row == null || row.length < words) {
+            int len = Math.max(words, (geometry.size() + 63) >>> 6);
+            if (row != null) {
+                len = Math.max(len, row.length * 2);
+            }
+            row = (row == null ? new long[len] : Arrays.copyOf(row, len));
+            rows[dom] = row;
+            decided[dom] = (decided[dom] == null ? new long[len] :
+                            Arrays.copyOf(decided[dom], len));
+        }
+        return row;
+    }
+
+    /**
+     * List a neighbour.  Neighbours are found by increasing index, so the
+     * list stays sorted.
+     */
+    private void addCandidate(int dom, int other)
+    {
+        final int num = numCandidates[dom];
+        if (num < 0) {
+            return;
+        }
+        if (num == MAX_CANDIDATES) {
+            candidates[dom] = null;
+            numCandidates[dom] = -1;
+            return;
+        }
+
+        int[] list = candidates[dom];
+        if (list == null) {
+            list = new int[8];
+            candidates[dom] = list;
+        } else if (num == list.length) {
+            list = Arrays.copyOf(list, Math.min(num * 2, MAX_CANDIDATES));
+            candidates[dom] = list;
+        }
+        list[num] = other;
+        numCandidates[dom] = num + 1;
+    }
+
+    /**
+     * Get the neighbours of a DOM.  numCandidates() must be called first.
+     *
+     * @param dom covered DOM index
+     *
+     * @return neighbour DOM indices by increasing index, in the first
+     *         numCandidates() entries, or <tt>null</tt> if there are too
+     *         many to list
+     */
+    int[] candidates(int dom)
+    {
+        return candidates[dom];
+    }
+
+    /**
+     * Get the number of neighbours of a DOM, listing them if they are not
+     * known yet.
+     *
+     * @param dom covered DOM index
+     *
+     * @return number of neighbours, or -1 if there are more than
+     *         MAX_CANDIDATES
+     */
+    int numCandidates(int dom)
+    {
+        list(dom);
+        return numCandidates[dom];
+    }
+
+    /**
+     * Can hits on these DOMs be close enough to form a double?
+     *
+     * @param dom DOM index
+     * @param other any DOM index
+     *
+     * @return <tt>false</tt> if the pair can never pass the velocity cut,
+     *         or if both are the same DOM
+     */
+    boolean isNeighbour(int dom, int other)
+    {
+        if (other < 0 || other == dom) {
+            return false;
+        }
+        if (dom >= covered.length || !bounds.isPlaced(dom) ||
+            !bounds.isPlaced(other))
+        {
+            return true;
+        }
+
+        final long[] row = row(dom, other + 1);
+        final long[] done = decided[dom];
+        final int w = other >>> 6;
+        final long bit = 1L << other;
+        if ((done[w] & bit) == 0L) {
+            done[w] |= bit;
+            if (bounds.mayBeWithin(dom, other, reach) &&
+                geometry.distance(dom, other) <= reach)
+            {
+                row[w] |= bit;
+            } else {
+                row[w] &= ~bit;
+            }
+        }
+        return (row[w] & bit) != 0L;
+    }
+
+    /**
+     * Largest time difference at which a hit on this DOM can still form a
+     * double with a hit on any covered DOM.
+     *
+     * @param dom covered DOM index
+     *
+     * @return time difference in UTC ticks
+     */
+    long maxTimeDiff(int dom)
+    {
+        if (slowness == Double.POSITIVE_INFINITY) {
+            return Long.MAX_VALUE;
+        }
+
+        final double ticks = Math.ceil(maxDistance[dom] * slowness) + 1.0;
+        if (ticks >= Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        return (long) ticks;
+    }
+
+    private void growDoms(int numDoms)
+    {
+        final int len = Math.max(numDoms, covered.length * 2);
+
+        covered = Arrays.copyOf(covered, len);
+        decided = Arrays.copyOf(decided, len);
+        rows = Arrays.copyOf(rows, len);
+        maxDistance = Arrays.copyOf(maxDistance, len);
+        listed = Arrays.copyOf(listed, len);
+        candidates = Arrays.copyOf(candidates, len);
+        numCandidates = Arrays.copyOf(numCandidates, len);
+    }
+}
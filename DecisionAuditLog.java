@@ -0,0 +1,294 @@
+package icecube.daq.trigger.algorithm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Binary audit of the cut values computed for each window.
+ *
+ * Records are written into a preallocated ring buffer without locks and
+ * drained to the file by a background thread, so the threads evaluating
+ * windows never wait for the disk.  When the ring is full a record is
+ * dropped and counted instead.  Any number of threads may add records.
+ *
+ * An existing file is never replaced: if the file exists, the first of
+ * <tt>file.1</tt>, <tt>file.2</tt>, ... which does not is written
+ * instead, so each run of the trigger keeps its own file.  The file
+ * starts with the magic number, the format version and the record size
+ * as big-endian
+ * <tt>int</tt>s, followed by one fixed-size big-endian record per window:
+ * <pre>
+ *   long  UTC time of the first hit in the window
+ *   int   number of hits
+ *   int   number of SLC hits
+ *   int   number of doubles, -1 if not computed
+ *   int   number of triples, -1 if not computed
+ *   int   zenith histogram maximum, -1 if not computed
+ *   int   azimuth histogram maximum, -1 if not computed
+ *   int   index of the last cut applied (see FaintParticleMonitor)
+ *   int   flags
+ * </pre>
+ * Each window gets one record.  A window deferred for an exact
+ * evaluation only gets the record of that evaluation, flagged OVERLOADED
+ * and DEFERRED.
+ * Records of windows evaluated in parallel may be out of time order.
+ * Counts flagged TRUNCATED were not finished once the cut was settled,
+ * so they are only a lower bound on the count.
+ */
+final class DecisionAuditLog
+{
+    private static final Logger LOG = Logger.getLogger(DecisionAuditLog.class);
+
+    /** "FPTA" */
+    static final int MAGIC = 0x46505441;
+    static final int VERSION = 1;
+
+    /** Bytes before the first record */
+    static final int HEADER_BYTES = 12;
+    /** Bytes in each record */
+    static final int RECORD_BYTES = 40;
+
+    /** Flag set if the window passed its last cut */
+    static final int PASSED = 0x1;
+    /** Flag set if the window ran out of its work budget */
+    static final int OVERLOADED = 0x2;
+    /** Flag set if the window was evaluated late, without a budget */
+    static final int DEFERRED = 0x4;
+    /** Flag set if a count stopped as soon as its cut was settled */
+    static final int TRUNCATED = 0x8;
+
+    /** Marks a value which was not computed */
+    static final int NOT_COMPUTED = -1;
+
+    /** Longs in each ring slot */
+    private static final int SLOT_LONGS = RECORD_BYTES / 8;
+
+    /** Records written to the file at once */
+    private static final int DRAIN_RECORDS = 1024;
+
+    /** How long the drain thread sleeps when the ring is empty */
+    private static final long IDLE_NANOS = 1000000L;
+
+    /** Most numbered file names tried before giving up */
+    private static final int MAX_FILE_NUMBER = 9999;
+
+    private final File file;
+    private final FileChannel channel;
+
+    /** record fields, packed into longs, SLOT_LONGS per slot */
+    private final long[] ring;
+    /** sequence number plus one of the record held by each slot */
+    private final AtomicLongArray published;
+    private final int mask;
+
+    /** next sequence number to hand out */
+    private final AtomicLong tail = new AtomicLong();
+    /** next sequence number to drain */
+    private volatile long head;
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final Thread drainer;
+    private volatile boolean closed;
+
+    /**
+     * Create the audit file, or a numbered one if it exists, and start
+     * draining records to it.
+     *
+     * @param file file to write
+     * @param capacity number of records in the ring, rounded up to a power
+     *                 of two
+     *
+     * @throws IOException if no file can be created
+     */
+    DecisionAuditLog(File file, int capacity)
+        throws IOException
+    {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        ring = new long[size * SLOT_LONGS];
+        published = new AtomicLongArray(size);
+        mask = size - 1;
+
+        File target = file;
+        FileChannel created = null;
+        for (int n = 1; created == null; n++) {
+            try {
+                created = FileChannel.open(target.toPath(),
+                                           StandardOpenOption.CREATE_NEW,
+                                           StandardOpenOption.WRITE);
+            } catch (FileAlreadyExistsException faee) {
+                if (n > MAX_FILE_NUMBER) {
+                    throw faee;
+                }
+                target = new File(file.getPath() + "." + n);
+            }
+        }
+        this.file = target;
+        channel = created;
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(RECORD_BYTES);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+
+        drainer = new Thread(new Runnable() {
+            public void run()
+            {
+                drain();
+            }
+        }, "FPTAudit-" + file.getName());
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * Add a record without blocking.
+     *
+     * @param time UTC time of the first hit in the window
+     * @param hits number of hits
+     * @param slcHits number of SLC hits
+     * @param doubles number of doubles or NOT_COMPUTED
+     * @param triples number of triples or NOT_COMPUTED
+     * @param zenithMax zenith histogram maximum or NOT_COMPUTED
+     * @param azimuthMax azimuth histogram maximum or NOT_COMPUTED
+     * @param stage index of the last cut applied
+     * @param flags PASSED, OVERLOADED, DEFERRED and TRUNCATED bits
+     *
+     * @return <tt>false</tt> if the ring was full and the record dropped
+     */
+    boolean add(long time, int hits, int slcHits, int doubles, int triples,
+                int zenithMax, int azimuthMax, int stage, int flags)
+    {
+        long seq;
+        do {
+            seq = tail.get();
+            if (closed || seq - head > mask) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        } while (!tail.compareAndSet(seq, seq + 1));
+
+        final int slot = (int) seq & mask;
+        final int base = slot * SLOT_LONGS;
+        ring[base] = time;
+        ring[base + 1] = pack(hits, slcHits);
+        ring[base + 2] = pack(doubles, triples);
+        ring[base + 3] = pack(zenithMax, azimuthMax);
+        ring[base + 4] = pack(stage, flags);
+        published.set(slot, seq + 1);
+        return true;
+    }
+
+    private static long pack(int high, int low)
+    {
+        return ((long) high << 32) | (low & 0xffffffffL);
+    }
+
+    /**
+     * File the records are written to.
+     */
+    File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Number of records written to the file so far.
+     */
+    long getWritten()
+    {
+        return written.get();
+    }
+
+    /**
+     * Number of records dropped because the ring was full.
+     */
+    long getDropped()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * Stop taking records, write the ones already added and close the
+     * file.
+     */
+    void close()
+    {
+        closed = true;
+        LockSupport.unpark(drainer);
+        try {
+            drainer.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            LOG.error("Interrupted while closing " + file, ie);
+        }
+    }
+
+    /**
+     * Body of the drain thread: copy published records in sequence order
+     * into a buffer and write it whenever it fills up or the ring runs dry.
+     */
+    private void drain()
+    {
+        ByteBuffer buf = ByteBuffer.allocateDirect(DRAIN_RECORDS * RECORD_BYTES);
+        try {
+            while (true) {
+                final boolean closing = closed;
+
+                long seq = head;
+                int n = 0;
+                while (n < DRAIN_RECORDS) {
+                    final int slot = (int) seq & mask;
+                    if (published.get(slot) != seq + 1) {
+                        //not added yet, or claimed but not yet filled in
+                        break;
+                    }
+                    final int base = slot * SLOT_LONGS;
+                    for (int i = 0; i < SLOT_LONGS; i++) {
+                        buf.putLong(ring[base + i]);
+                    }
+                    seq++;
+                    n++;
+                }
+                //the slots are free once copied
+                head = seq;
+
+                if (n > 0) {
+                    buf.flip();
+                    while (buf.hasRemaining()) {
+                        channel.write(buf);
+                    }
+                    buf.clear();
+                    written.addAndGet(n);
+                } else if (closing && seq == tail.get()) {
+                    break;
+                } else {
+                    LockSupport.parkNanos(IDLE_NANOS);
+                }
+            }
+        } catch (IOException ioe) {
+            LOG.error("Cannot write audit records to " + file, ioe);
+            closed = true;
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException ioe) {
+                LOG.error("Cannot close " + file, ioe);
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package icecube.daq.trigger.algorithm;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-bin histogram of double directions for the FaintParticleTrigger
+ * direction cut.
+ *
+ * The bins cover <tt>[0, upperBound)</tt> in steps of <tt>binSize</tt>
+ * degrees.  When the bin size divides the upper bound, the last bin also
+ * includes <tt>[upperBound, upperBound + 1)</tt>, so that 180 and 360
+ * degrees are counted in the last zenith and azimuth bins.  Angles can be
+ * added and removed one at a time and the fullest bin is tracked with a
+ * count of bins for every fill level, so both updates and the maximum are
+ * O(1).
+ */
+final class DirectionHistogram
+{
+    /** Returned by bin() for angles outside every bin */
+    static final int NO_BIN = -1;
+
+    private final int upperBound;
+    private final int binSize;
+    private final int numBins;
+    private final boolean lastBinClosed;
+
+    /** Number of entries in each bin */
+    private final int[] bins;
+    /** Number of bins holding exactly <tt>n</tt> entries */
+    private int[] binsWithCount;
+    /** Number of entries in the fullest bin */
+    private int max;
+
+    /**
+     * Create an empty histogram.
+     *
+     * @param upperBound upper bound in degrees
+     * @param binSize bin width in degrees
+     */
+    DirectionHistogram(int upperBound, int binSize)
+    {
+        if (binSize <= 0) {
+            throw new IllegalArgumentException("Bad histogram binning " +
+                                               binSize);
+        }
+
+        this.upperBound = upperBound;
+        this.binSize = binSize;
+
+        numBins = (upperBound + binSize - 1) / binSize;
+        lastBinClosed = (upperBound % binSize == 0);
+
+        bins = new int[numBins];
+        binsWithCount = new int[16];
+        binsWithCount[0] = numBins;
+    }
+
+    /**
+     * Does this histogram use the given binning?
+     */
+    boolean isFor(int upperBound, int binSize)
+    {
+        return this.upperBound == upperBound && this.binSize == binSize;
+    }
+
+    /**
+     * Get the bin which holds an angle.
+     *
+     * @param angle angle in degrees
+     *
+     * @return bin index or <tt>NO_BIN</tt>
+     */
+    int bin(double angle)
+    {
+        if (!(angle >= 0.0)) {
+            return NO_BIN;
+        }
+
+        int idx = (int) (angle / binSize);
+        // bin edges are integers, so make sure rounding in the division
+        // did not move the angle across one
+        if ((double) idx * binSize > angle) {
+            idx--;
+        } else if ((double) (idx + 1) * binSize <= angle) {
+            idx++;
+        }
+
+        if (idx < numBins) {
+            return idx;
+        }
+        if (lastBinClosed && angle < upperBound + 1) {
+            return numBins - 1;
+        }
+        return NO_BIN;
+    }
+
+    /**
+     * Count an angle.
+     *
+     * @param angle angle in degrees
+     */
+    void add(double angle)
+    {
+        final int idx = bin(angle);
+        if (idx != NO_BIN) {
+            addBin(idx);
+        }
+    }
+
+    /**
+     * Remove an angle which was previously added.
+     *
+     * @param angle angle in degrees
+     */
+    void remove(double angle)
+    {
+        final int idx = bin(angle);
+        if (idx != NO_BIN) {
+            removeBin(idx);
+        }
+    }
+
+    /**
+     * Count one entry in a bin.
+     *
+     * @param idx bin index
+     */
+    void addBin(int idx)
+    {
+        final int count = bins[idx] + 1;
+        bins[idx] = count;
+
+        if (count == binsWithCount.length) {
+            binsWithCount = Arrays.copyOf(binsWithCount, count * 2);
+        }
+        binsWithCount[count - 1]--;
+        binsWithCount[count]++;
+
+        if (count > max) {
+            max = count;
+        }
+    }
+
+    /**
+     * Remove one entry from a bin.
+     *
+     * @param idx bin index
+     */
+    void removeBin(int idx)
+    {
+        final int count = bins[idx];
+        bins[idx] = count - 1;
+
+        binsWithCount[count]--;
+        binsWithCount[count - 1]++;
+
+        if (count == max && binsWithCount[count] == 0) {
+            max = count - 1;
+        }
+    }
+
+    /**
+     * Get the number of entries in the fullest bin.
+     *
+     * @return maximum bin count
+     */
+    int max()
+    {
+        return max;
+    }
+
+    /**
+     * Remove all entries.
+     */
+    void clear()
+    {
+        Arrays.fill(bins, 0);
+        Arrays.fill(binsWithCount, 0, max + 1, 0);
+        binsWithCount[0] = numBins;
+        max = 0;
+    }
+}
@@ -2,11 +2,19 @@ package icecube.daq.trigger.algorithm;
 import icecube.daq.payload.IHitPayload;
 import icecube.daq.payload.IPayload;
 import icecube.daq.payload.IUTCTime;
+import icecube.daq.payload.impl.UTCTime;
 import icecube.daq.trigger.exceptions.*;
-import icecube.daq.util.DOMInfo;
 import icecube.daq.util.IDOMRegistry;
 import org.apache.log4j.Logger;
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class FaintParticleTrigger
         extends AbstractTrigger
@@ -47,6 +55,26 @@ public class FaintParticleTrigger
     //stage 4
     public double slcfraction_min;
 
+    //optional: keep the doubles up to date as hits enter and leave the window
+    public boolean incremental_doubles;
+    //optional: number of threads evaluating windows in parallel, 0 to evaluate on the calling thread
+    public int pipeline_threads;
+    //optional: time the cuts of every n-th window for monitoring, 0 to turn timing off
+    public int timing_sample_interval;
+    //optional: directory of memory-mapped DOM pair geometry files shared by all triggers
+    public String geometry_cache_dir;
+    //optional overload mode: hit pairs (or triple merge steps) and nanoseconds the pair cuts
+    //may spend on one window, 0 for no limit; with incremental_doubles the pair budget also
+    //covers the pairs searched as hits enter the window
+    public long window_pair_budget;
+    public long window_time_budget;
+    //optional: evaluate windows which ran out of budget again on another thread, without a budget
+    public boolean defer_overloaded_windows;
+    //optional: binary file receiving the cut values of every window, and the
+    //number of records buffered for it
+    public String audit_file;
+    public int audit_buffer_records = 65536;
+
 
     public boolean time_window_configured = false;
     public boolean time_window_separation_configured = false;
@@ -68,7 +96,10 @@ public class FaintParticleTrigger
 
     public boolean slcfraction_min_configured = false;
 
-    public IUTCTime StartTime = null;
+    //Marks StartTime and lastHitTime before the first hit
+    public static final long NO_TIME = Long.MIN_VALUE;
+    //Start of the current time window in UTC ticks, see getStartTime()
+    private long StartTime = NO_TIME;
     // Convert to ns
     final int convert_to_ns = 10;
     //Convert to km/s
@@ -83,14 +114,87 @@ public class FaintParticleTrigger
     /**
      * list of hits currently within slidingTimeWindow
      */
-    private SlidingTimeWindow slidingTimeWindow = new SlidingTimeWindow();
+    private SlidingTimeWindow slidingTimeWindow = new SlidingTimeWindow(true);
 
     /**
      * list of hits in current trigger
      */
     private HitCollection hitsWithinTriggerWindow = new HitCollection();
 
-    public IUTCTime lastHitTime = null;
+    /**
+     * pairwise DOM geometry for the current DOM registry
+     */
+    private RegistryGeometryTable geometry;
+
+    /**
+     * mapped geometry opened for geometry_cache_dir, and whether its file
+     * is still being written while a plain table stands in for it
+     */
+    private Future<MappedGeometryTable> geometryFile;
+    private boolean geometryStandIn;
+
+    /**
+     * distance and time limits used to prune the pair search
+     */
+    private DOMNeighbourhood neighbourhood;
+
+    /**
+     * windows being evaluated by worker threads (pipeline_threads only)
+     */
+    private WindowPipeline pipeline;
+
+    /**
+     * configurations evaluated on the windows of this trigger, starting
+     * with this trigger itself (sweep only)
+     */
+    private ArrayList<FaintParticleTrigger> sweep;
+
+    /**
+     * window copy holding this configuration's doubles during a sweep
+     */
+    private SlidingTimeWindow sweepWindow;
+
+    /**
+     * pair search limits covering every configuration of the sweep
+     */
+    private DOMNeighbourhood sweepLimits;
+
+    /** Most windows waiting for an exact evaluation at once */
+    private static final int MAX_DEFERRED_WINDOWS = 256;
+
+    /**
+     * number of windows which ran out of budget and wait for an exact
+     * evaluation (defer_overloaded_windows only)
+     */
+    private final AtomicInteger numDeferredWindows = new AtomicInteger();
+
+    /**
+     * cut values of each window, written in the background (audit_file only)
+     */
+    private volatile DecisionAuditLog audit;
+
+    /**
+     * cut counters and stage timing reported to I3Live
+     */
+    private final FaintParticleMonitor monitor = new FaintParticleMonitor();
+
+    /**
+     * rolling hit rate of each DOM, reported to I3Live
+     */
+    private final DOMHitRates domRates = new DOMHitRates();
+
+    /**
+     * sequence number following the newest hit in hitsWithinTriggerWindow
+     */
+    private int triggerNextSeq;
+
+    //Time of the last hit in UTC ticks, see getLastHitTime()
+    private long lastHitTime = NO_TIME;
+
+    /**
+     * hit times of the batch being processed by runTrigger(IPayload[], int, int)
+     */
+    private long[] batchTimes = new long[0];
 
 
 
@@ -135,6 +239,10 @@ public class FaintParticleTrigger
             triple_min_configured= true;
         } else if (name.compareTo("histogram_binning") == 0) {
             histogram_binning= Integer.parseInt(value);
+            if (histogram_binning <= 0) {
+                throw new IllegalParameterValueException("Bad histogram_binning " +
+                        value);
+            }
             histogram_binning_configured= true;
         } else if (name.compareTo("azimuth_histogram_min") == 0) {
             azimuth_histogram_min= Integer.parseInt(value);
@@ -145,6 +253,45 @@ public class FaintParticleTrigger
         } else if (name.compareTo("slcfraction_min") == 0) {
             slcfraction_min= Double.parseDouble(value);
             slcfraction_min_configured= true;
+        } else if (name.compareTo("incremental_doubles") == 0) {
+            incremental_doubles = Boolean.parseBoolean(value);
+        } else if (name.compareTo("pipeline_threads") == 0) {
+            pipeline_threads = Integer.parseInt(value);
+            if (pipeline_threads < 0) {
+                throw new IllegalParameterValueException("Bad pipeline_threads " +
+                        value);
+            }
+        } else if (name.compareTo("timing_sample_interval") == 0) {
+            timing_sample_interval = Integer.parseInt(value);
+            if (timing_sample_interval < 0) {
+                throw new IllegalParameterValueException("Bad timing_sample_interval " +
+                        value);
+            }
+            monitor.setSampleInterval(timing_sample_interval);
+        } else if (name.compareTo("window_pair_budget") == 0) {
+            window_pair_budget = Long.parseLong(value);
+            if (window_pair_budget < 0) {
+                throw new IllegalParameterValueException("Bad window_pair_budget " +
+                        value);
+            }
+        } else if (name.compareTo("window_time_budget") == 0) {
+            window_time_budget = Long.parseLong(value);
+            if (window_time_budget < 0) {
+                throw new IllegalParameterValueException("Bad window_time_budget " +
+                        value);
+            }
+        } else if (name.compareTo("defer_overloaded_windows") == 0) {
+            defer_overloaded_windows = Boolean.parseBoolean(value);
+        } else if (name.compareTo("audit_file") == 0) {
+            audit_file = value;
+        } else if (name.compareTo("audit_buffer_records") == 0) {
+            audit_buffer_records = Integer.parseInt(value);
+            if (audit_buffer_records <= 0) {
+                throw new IllegalParameterValueException("Bad audit_buffer_records " +
+                        value);
+            }
+        } else if (name.compareTo("geometry_cache_dir") == 0) {
+            geometry_cache_dir = value;
         } else if (name.compareTo("domSet") == 0) {
             domSetId = Integer.parseInt(value);
             try {
@@ -186,15 +333,156 @@ public class FaintParticleTrigger
 
     @Override
     public void flush()
+    {
+        if (pipeline != null) {
+            pipeline.drain();
+        }
+        if (sweep != null) {
+            for (FaintParticleTrigger config : sweep) {
+                config.flushBefore(StartTime);
+            }
+        } else {
+            flushBefore(StartTime);
+        }
+    }
+
+    /**
+     * Apply the windows whose exact evaluation has finished, together with
+     * the windows queued behind them.  Windows which ran out of budget are
+     * evaluated again without a budget as soon as they are deferred, on
+     * the pipeline threads, and are applied in window order like every
+     * other window, so a passing one extends the trigger it belongs to.
+     * This is done whenever a window is analyzed, and flush() and
+     * advanceTime() wait for every deferred window, so it only needs to be
+     * called to send triggers while the hit intake is quiet.
+     */
+    public void evaluateDeferredWindows()
+    {
+        if (pipeline != null) {
+            pipeline.applyFinished();
+        }
+    }
+
+    /**
+     * Count a window whose pair cuts could not be decided within the
+     * budget, marking it for an exact evaluation if
+     * defer_overloaded_windows is set.  Called by the thread evaluating the
+     * window.
+     *
+     * @param window overloaded window
+     * @param stage cut which could not be decided
+     *
+     * @return <tt>false</tt>, the window does not trigger now
+     */
+    private boolean overloaded(SlidingTimeWindow window, int stage)
+    {
+        if (!defer_overloaded_windows) {
+            monitor.addOverload(false);
+        } else if (numDeferredWindows.incrementAndGet() > MAX_DEFERRED_WINDOWS) {
+            numDeferredWindows.decrementAndGet();
+            monitor.addOverload(false);
+        } else {
+            //the exact evaluation writes the only audit record
+            window.deferred = true;
+            monitor.addOverload(true);
+            return false;
+        }
+        return decided(window, stage, false);
+    }
+
+    /**
+     * Evaluate a window which ran out of budget again, without a budget.
+     * The window must not be the live window when incremental_doubles is
+     * set, since its doubles may be incomplete.
+     *
+     * @param window deferred window
+     * @param geometry current geometry table
+     *
+     * @return <tt>true</tt> if the window passes all cuts
+     */
+    private boolean passesExactly(SlidingTimeWindow window,
+                                  DOMGeometryTable geometry)
+    {
+        window.exact = true;
+        try {
+            boolean pass = passesPairCuts(window, geometry);
+            if (pass) {
+                monitor.addDeferredTrigger();
+            }
+            return pass;
+        } finally {
+            window.exact = false;
+            window.deferred = false;
+            numDeferredWindows.decrementAndGet();
+        }
+    }
+
+    /**
+     * Send the current trigger if no window starting at or after
+     * <tt>windowStart</tt> can extend it.
+     *
+     * @param windowStart window start in UTC ticks
+     */
+    private void flushBefore(long windowStart)
     {
         if (haveTrigger()) {
-	    long overlap = trigger_window_end -StartTime.longValue();
+	    long overlap = trigger_window_end -windowStart;
 	    if (overlap<0){
             	flushTrigger();
 	   }
         }
     }
 
+    /**
+     * Tell the trigger that no hit earlier than <tt>watermark</tt> will
+     * arrive.  Every window which ends at or before the watermark is
+     * evaluated now, and a trigger which no later window can extend is
+     * sent without waiting for the next usable hit.  The triggers are the
+     * same as without the watermark, they are only sent earlier.
+     *
+     * Hits earlier than the watermark are rejected afterwards.  A watermark
+     * before the last hit is ignored.
+     *
+     * @param watermark UTC time in ticks
+     */
+    public void advanceTime(long watermark)
+    {
+        if (lastHitTime != NO_TIME && watermark <= lastHitTime) {
+            return;
+        }
+        lastHitTime = watermark;
+
+        if (StartTime == NO_TIME) {
+            //no usable hit yet, so there is no window to close
+            return;
+        }
+        updateSlidingWindow(watermark);
+        flush();
+    }
+
+    public void advanceTime(IUTCTime watermark)
+    {
+        advanceTime(watermark.longValue());
+    }
+
+    /**
+     * Flush the current trigger once the windows before StartTime have been
+     * applied.  In pipelined mode this waits behind the windows which are
+     * still being evaluated.
+     */
+    private void flushFinishedTrigger()
+    {
+        if (sweep != null) {
+            for (FaintParticleTrigger config : sweep) {
+                config.flushBefore(StartTime);
+            }
+        } else if (pipeline != null && pipeline.isBusy()) {
+            pipeline.addFlush(StartTime);
+        } else {
+            flushBefore(StartTime);
+        }
+    }
+
 
     /**
      * Set name of trigger
@@ -215,6 +503,28 @@ public class FaintParticleTrigger
         return MONITORING_NAME;
     }
 
+    /**
+     * Get the cut counters and stage timing for I3Live.  This is safe to
+     * call while hits are being processed.
+     *
+     * @return map of monitoring name to value
+     */
+    @Override
+    public Map<String, Object> getTriggerMonitorMap()
+    {
+        Map<String, Object> map = monitor.getMap();
+        domRates.addTo(map);
+        //Noise hits expected in one window, to compare with hit_max
+        map.put("NoiseHitsPerWindow",
+                domRates.getTotalRate() * time_window * 1.0E-9);
+        DecisionAuditLog log = audit;
+        if (log != null) {
+            map.put("AuditRecordsWritten", log.getWritten());
+            map.put("AuditRecordsDropped", log.getDropped());
+        }
+        return map;
+    }
+
     @Override
     public boolean isConfigured()
     {
@@ -247,20 +557,20 @@ public class FaintParticleTrigger
             );
         // This upcast should be safe now
         IHitPayload hit = (IHitPayload) payload;
-        IUTCTime hitTimeUTC = hit.getPayloadTimeUTC();
-        if (hitTimeUTC == null) {
+        if (hit.getPayloadTimeUTC() == null) {
             throw new TriggerException("Hit time was null");
         }
+        final long hitTime = hit.getUTCTime();
 
         // verify strict time ordering
-        if (lastHitTime != null && hitTimeUTC.compareTo(lastHitTime) < 0) {
+        if (lastHitTime != NO_TIME && hitTime < lastHitTime) {
             throw new TimeOutOfOrderException(
                     "Hit comes before previous hit:" +
                             " Previous hit is at " + lastHitTime +
-                            " Hit is at " + hitTimeUTC + " DOMId = " +
+                            " Hit is at " + hitTime + " DOMId = " +
                             hit.getDOMID());
         }
-        lastHitTime = hitTimeUTC;
+        lastHitTime = hitTime;
 
         boolean usableHit = hitFilter.useHit(hit) && getHitType(hit)==SPE_HIT;
 
@@ -273,307 +583,1812 @@ public class FaintParticleTrigger
         analyzeWindow(hit);
     }
 
+    /**
+     * Run the trigger on a list of hits in time order.
+     *
+     * @param payloads hits in time order
+     *
+     * @throws TriggerException if the batch is rejected
+     *
+     * @see #runTrigger(IPayload[], int, int)
+     */
+    public void runTrigger(List<? extends IPayload> payloads)
+        throws TriggerException
+    {
+        final int length = payloads.size();
+        if (length <= 0) {
+            return;
+        }
+        if (batchTimes.length < length) {
+            batchTimes = new long[Math.max(length, batchTimes.length * 2)];
+        }
 
+        //Check the whole batch before touching the window
+        long prevTime = lastHitTime;
+        int i = 0;
+        for (IPayload payload : payloads) {
+            prevTime = checkBatchHit(payload, i++, prevTime);
+        }
+        lastHitTime = prevTime;
 
-    public void analyzeWindow(IHitPayload hit) {
-
-        if (StartTime == null) {
-            StartTime = hit.getPayloadTimeUTC();
+        final long windowTicks = time_window*convert_to_ns;
+        i = 0;
+        for (IPayload payload : payloads) {
+            addBatchHit((IHitPayload) payload, batchTimes[i++], windowTicks);
+        }
+    }
 
+    /**
+     * Run the trigger on a batch of hits in time order.  This forms the same
+     * triggers as passing the hits to runTrigger(IPayload) one at a time,
+     * but the types and the time order of the whole batch are checked
+     * before any hit is used.  A bad batch is rejected without changing
+     * the trigger state.
+     *
+     * @param payloads array holding the hits
+     * @param offset index of the first hit
+     * @param length number of hits
+     *
+     * @throws TriggerException if a payload is not a hit or the hits are
+     *                          not in time order
+     */
+    public void runTrigger(IPayload[] payloads, int offset, int length)
+        throws TriggerException
+    {
+        if (length <= 0) {
+            return;
+        }
+        if (batchTimes.length < length) {
+            batchTimes = new long[Math.max(length, batchTimes.length * 2)];
         }
-        // The time window will be analyzed if the current hit is outside of the window
-        updateSlidingWindow(hit.getPayloadTimeUTC());
 
-        // The current hit is added to the window and will be analyzed in the next iteration
-        if (!slidingTimeWindow.contains(hit)) {
-            slidingTimeWindow.add(hit);
+        //Check the whole batch before touching the window
+        long prevTime = lastHitTime;
+        for (int i = 0; i < length; i++) {
+            prevTime = checkBatchHit(payloads[offset + i], i, prevTime);
+        }
+        lastHitTime = prevTime;
 
+        final long windowTicks = time_window*convert_to_ns;
+        for (int i = 0; i < length; i++) {
+            addBatchHit((IHitPayload) payloads[offset + i], batchTimes[i],
+                        windowTicks);
         }
     }
 
-    public void FPTalgorithm(){
-        IDOMRegistry domRegistry = getTriggerManager().getDOMRegistry();
-	flush();
-        //First cut on the number of hits
-        if (slidingTimeWindow.HitThreshold()) {
-            // Second cut on the number of Doubles (All hit pair combinations that satisfy a velocity cut)
-            ArrayList<Integer> Double_Indices = slidingTimeWindow.DoubleThreshold(domRegistry);
-            int number_doubles = Double_Indices.size() / 2;
-            if (number_doubles >= double_min ) {
-                // direction or triple cut
-                boolean cut3 = false;
-                if ( use_dc_version){
-                    //Third cut on the clustering of Doubles in zenith and azimuth
-                    ArrayList<Integer> direction = slidingTimeWindow.DirectionThreshold(Double_Indices,domRegistry);
-                    int number_azimuth = direction.get(0);
-                    int number_zenith = direction.get(1);
-                    if (number_zenith> zenith_histogram_min && number_azimuth > azimuth_histogram_min){
-                        cut3 = true;
-                    }
-
-
-                }
-                else {
-                    //Third cut on the number of Triples (combinations of three hits that satisfy a velocity cut)
+    /**
+     * Check one hit of a batch and keep its time.
+     *
+     * @param payload hit to check
+     * @param i position of the hit in the batch
+     * @param prevTime time of the previous hit, or NO_TIME
+     *
+     * @return time of the hit
+     *
+     * @throws TriggerException if the payload is not a hit or the hit is
+     *                          out of order
+     */
+    private long checkBatchHit(IPayload payload, int i, long prevTime)
+        throws TriggerException
+    {
+        if (!(payload instanceof IHitPayload))
+            throw new TriggerException(
+                    "Payload object " + payload + " cannot be upcast to IHitPayload."
+            );
+        if (payload.getPayloadTimeUTC() == null) {
+            throw new TriggerException("Hit time was null");
+        }
+        final long hitTime = payload.getUTCTime();
+        if (prevTime != NO_TIME && hitTime < prevTime) {
+            throw new TimeOutOfOrderException(
+                    "Hit comes before previous hit:" +
+                            " Previous hit is at " + prevTime +
+                            " Hit is at " + hitTime + " DOMId = " +
+                            ((IHitPayload) payload).getDOMID());
+        }
+        batchTimes[i] = hitTime;
+        return hitTime;
+    }
 
-                    int number_triples = slidingTimeWindow.TripleThreshold(Double_Indices,domRegistry);
-                    if (number_triples > triple_min){
-                        cut3 = true;
-                    }
+    /**
+     * Add one checked hit of a batch to the window.
+     *
+     * @param hit checked hit
+     * @param hitTime time of the hit
+     * @param windowTicks window length in UTC ticks
+     */
+    private void addBatchHit(IHitPayload hit, long hitTime, long windowTicks)
+    {
+        if (!hitFilter.useHit(hit) || getHitType(hit) != SPE_HIT) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Hit " + hit + " isn't usable");
+            }
+            return;
+        }
 
-                }
-                if (cut3){
-                    //Fourth cut on the SLC fraction
+        if (StartTime == NO_TIME) {
+            StartTime = hitTime;
+        }
+        //Hits are in order, so only a hit past the window end moves it
+        if (hitTime >= StartTime + windowTicks) {
+            updateSlidingWindow(hitTime);
+        }
+        addToWindow(hit);
+    }
 
-                    double slc_fraction = slidingTimeWindow.SlcFractionThreshold();
-                    if (slc_fraction > slcfraction_min) {
+    public void analyzeWindow(IHitPayload hit) {
 
-                        //Check if previous window is above threshold and add new hits to the trigger window
-                        if (haveTrigger()) {
-							trigger_window_end =StartTime.getOffsetUTCTime(time_window*convert_to_ns).longValue();
-                            for (IHitPayload k: slidingTimeWindow ){
-                                if (!hitsWithinTriggerWindow.contains(k)){
-                                    hitsWithinTriggerWindow.add(k);
+        final long hitTime = hit.getUTCTime();
+        if (StartTime == NO_TIME) {
+            StartTime = hitTime;
 
-                                }
-                            }
+        }
+        // The time window will be analyzed if the current hit is outside of the window
+        updateSlidingWindow(hitTime);
 
-                            double trigger_length =hitsWithinTriggerWindow.getLast().getUTCTime() - hitsWithinTriggerWindow.getFirst().getUTCTime();
-                            if ( trigger_length> max_trigger_length*convert_to_ns) {
-			        LOG.error("Unexpected long event");
-                                flushTrigger();
-                            }
-                                /*
-                                 If there was no previous trigger the hits are added to the trigger window which could be extended
-                                in the next iteration up to the maximum trigger length
+        // The current hit is added to the window and will be analyzed in the next iteration
+        addToWindow(hit);
+    }
 
-                                 */
-                        } else {
-							trigger_window_end =StartTime.getOffsetUTCTime(time_window*convert_to_ns).longValue();
-                            hitsWithinTriggerWindow.addAll(slidingTimeWindow.copy());
-                       }
-                    }
-                }
+    /**
+     * Add a hit inside the current window bounds to the sliding window,
+     * unless it is already there.
+     *
+     * @param hit hit to add
+     */
+    private void addToWindow(IHitPayload hit)
+    {
+        if (!slidingTimeWindow.contains(hit)) {
+            DOMGeometryTable geometry = getGeometry();
+            int dom = domIndex(hit);
+            if (dom != DOMGeometryTable.NO_DOM) {
+                domRates.add(dom, hit.getUTCTime());
             }
+            slidingTimeWindow.add(hit, dom, geometry);
         }
     }
 
+    public void FPTalgorithm(){
+        DOMGeometryTable geometry = getGeometry();
+        if (pipeline != null) {
+            pipeline.applyFinished();
+        }
 
+        boolean pass = windowPasses(slidingTimeWindow, geometry);
+        if (slidingTimeWindow.deferred) {
+            //Out of budget: a pipeline thread evaluates a copy exactly, and
+            //this window and every later one are applied behind it in order
+            getPipeline().submitDeferred(StartTime, slidingTimeWindow,
+                                         geometry);
+        } else if (pipeline != null && pipeline.isBusy()) {
+            pipeline.addDecided(StartTime, slidingTimeWindow, pass);
+        } else {
+            flushBefore(StartTime);
+            if (pass) {
+                addToTrigger(StartTime, slidingTimeWindow);
+            }
+        }
+    }
 
-
-    public void updateSlidingWindow(IUTCTime hitTimeUTC)
+    /**
+     * Add the hits of a window which passed all cuts to the trigger.
+     *
+     * @param windowStart window start in UTC ticks
+     * @param window passing window
+     */
+    private void addToTrigger(long windowStart, SlidingTimeWindow window)
     {
-
-        /*
-        If the hit lies outside of the timewindow, the current time window will be analyzed and bounds
-        adjusted unitl the new hit is within the new time window bounds. Afterwards it is added to the time window, which will be analyzed when
-        the next hit is outside of the window and triggers the while loop.
-
-         */
-        while (!slidingTimeWindow.inTimeWindow(hitTimeUTC, StartTime)) {
-
-            //If there is no hit inside of the time window adjust the bounds until the new hit is in the window and skip the rest of the function.
-            if (slidingTimeWindow.size()==0) {
-
-                StartTime = StartTime.getOffsetUTCTime(time_window_separation*convert_to_ns);
-                //this will not be a time window extending the trigger -> flush if previous one was triggered
-                flush();
-                continue;
+        //Check if previous window is above threshold and add new hits to the trigger window
+        if (haveTrigger()) {
+            trigger_window_end =windowStart + time_window*convert_to_ns;
+            //Every window hit up to the last accumulated one is already in the trigger, only newer hits are added
+            triggerNextSeq =
+                window.appendTo(hitsWithinTriggerWindow, triggerNextSeq);
+
+            double trigger_length =hitsWithinTriggerWindow.getLast().getUTCTime() - hitsWithinTriggerWindow.getFirst().getUTCTime();
+            if ( trigger_length> max_trigger_length*convert_to_ns) {
+                LOG.error("Unexpected long event");
+                monitor.addLongEvent();
+                flushTrigger();
             }
-
-
-            // Run the trigger algorithm on the hits that are within the time window
-            FPTalgorithm();
             /*
-            Since all other hits are within the current window and the hit that is currently analyzed is not yet in the window
-            The bound of the time window can be shifted. The windows are separated by a fixed time timeWindow_separation
-             */
-            StartTime = StartTime.getOffsetUTCTime(time_window_separation*convert_to_ns);
-            //Since the bounds are shifted the first hit(s) of the time window can now lie before the new window and are removed
-
-            while (slidingTimeWindow.getFirst().getPayloadTimeUTC().compareTo(StartTime)<0) {
+             If there was no previous trigger the hits are added to the trigger window which could be extended
+            in the next iteration up to the maximum trigger length
 
-                if (slidingTimeWindow.size()==1) {
-                    slidingTimeWindow.removeFirst();
-                    flush();
+             */
+        } else {
+            trigger_window_end =windowStart + time_window*convert_to_ns;
+            triggerNextSeq = window.appendTo(hitsWithinTriggerWindow,
+                                             window.first);
+        }
+    }
 
-                    break;
+    /**
+     * Run the cut cascade on the current window.  A window triggers only if
+     * every cut passes, so the cuts are applied from the cheapest to the most
+     * expensive and the first failing cut ends the evaluation.
+     *
+     * @param window window to evaluate
+     * @param geometry current geometry table
+     *
+     * @return <tt>true</tt> if the window passes all cuts
+     */
+    private boolean windowPasses(SlidingTimeWindow window,
+                                 DOMGeometryTable geometry)
+    {
+        return passesCountCuts(window) && passesPairCuts(window, geometry);
+    }
 
-                }
-                slidingTimeWindow.removeFirst();
+    /**
+     * Apply the cuts which only count hits.  These are O(1).
+     *
+     * @param window window to evaluate
+     *
+     * @return <tt>true</tt> if the window passes the hit count and SLC cuts
+     */
+    private boolean passesCountCuts(SlidingTimeWindow window)
+    {
+        final boolean timed = monitor.startWindow(window.size());
+        window.timed = timed;
+        window.clearCutValues();
+        if (audit == null && audit_file != null) {
+            openAudit();
+        }
+        long start = timed ? System.nanoTime() : 0L;
 
+        //First cut on the number of hits
+        boolean pass = window.HitThreshold();
+        start = monitor.endStage(FaintParticleMonitor.HIT_COUNT, pass, timed,
+                                 start);
+        if (!pass) {
+            return decided(window, FaintParticleMonitor.HIT_COUNT, false);
+        }
 
+        //The SLC fraction is kept up to date as hits come and go, so this
+        //cut is checked before any pairs are searched
+        double slc_fraction = window.SlcFractionThreshold();
+        pass = slc_fraction > slcfraction_min;
+        monitor.endStage(FaintParticleMonitor.SLC_FRACTION, pass, timed, start);
+        if (!pass) {
+            return decided(window, FaintParticleMonitor.SLC_FRACTION, false);
+        }
+        return true;
+    }
 
+    /**
+     * Apply the cuts on hit pairs and triples to a window which passed
+     * passesCountCuts().
+     *
+     * @param window window to evaluate
+     * @param geometry current geometry table
+     *
+     * @return <tt>true</tt> if the window passes the remaining cuts
+     */
+    private boolean passesPairCuts(SlidingTimeWindow window,
+                                   DOMGeometryTable geometry)
+    {
+        final boolean timed = window.timed;
+        long start = timed ? System.nanoTime() : 0L;
+        window.startBudget();
+        window.clearCutValues();
+
+        // Cut on the number of Doubles (All hit pair combinations that satisfy a velocity cut)
+        int number_doubles;
+        if (window.tracksDoubles() || window.doublesSelected) {
+            //Doubles were already found when the hits entered the window,
+            //or were taken from the pairs shared by a sweep
+            number_doubles = window.numDoubles;
+            //Hits whose doubles were skipped for the budget leave only a
+            //lower bound
+            if (window.missesDoubles()) {
+                window.overBudget = true;
             }
+        } else {
+            //If the last cut cannot fail, only the number of doubles matters
+            number_doubles =
+                window.DoubleThreshold(geometry, lastCutAlwaysPasses());
+        }
+        monitor.addDoubles(window.numPairsExamined, number_doubles);
+        window.numPairsExamined = 0;
+        window.cutDoubles = number_doubles;
+        boolean pass = number_doubles >= double_min;
+        if (!pass && window.overBudget) {
+            return overloaded(window, FaintParticleMonitor.DOUBLES);
+        }
+        //Out of budget with enough doubles, the doubles found so far give
+        //lower bounds on the last cut
+        start = monitor.endStage(FaintParticleMonitor.DOUBLES, pass, timed,
+                                 start);
+        if (!pass) {
+            return decided(window, FaintParticleMonitor.DOUBLES, false);
+        }
 
-
+        if ( use_dc_version){
+            //Cut on the clustering of Doubles in zenith and azimuth
+            window.DirectionThreshold(geometry);
+            int number_azimuth = window.azimuthHistogram.max();
+            int number_zenith = window.zenithHistogram.max();
+            window.cutZenithMax = number_zenith;
+            window.cutAzimuthMax = number_azimuth;
+            pass = number_zenith> zenith_histogram_min && number_azimuth > azimuth_histogram_min;
+            if (!pass && window.overBudget) {
+                return overloaded(window, FaintParticleMonitor.DIRECTION);
+            }
+            monitor.endStage(FaintParticleMonitor.DIRECTION, pass, timed,
+                             start);
+            return decided(window, FaintParticleMonitor.DIRECTION, pass);
         }
 
+        //Cut on the number of Triples (combinations of three hits that satisfy a velocity cut)
+        int number_triples = window.TripleThreshold();
+        window.cutTriples = number_triples;
+        pass = number_triples > triple_min;
+        if (!pass && window.overBudget) {
+            return overloaded(window, FaintParticleMonitor.TRIPLES);
+        }
+        monitor.endStage(FaintParticleMonitor.TRIPLES, pass, timed, start);
+        return decided(window, FaintParticleMonitor.TRIPLES, pass);
+    }
+
+    /**
+     * Write the cut values of a decided window to the audit file, if there
+     * is one.
+     *
+     * @param window decided window
+     * @param stage last cut applied
+     * @param pass <tt>true</tt> if the window passed every cut
+     *
+     * @return <tt>pass</tt>
+     */
+    private boolean decided(SlidingTimeWindow window, int stage, boolean pass)
+    {
+        DecisionAuditLog log = audit;
+        if (log != null) {
+            int flags = 0;
+            if (pass) {
+                flags |= DecisionAuditLog.PASSED;
+            }
+            //an exact evaluation follows an overloaded one
+            if (window.overBudget || window.exact) {
+                flags |= DecisionAuditLog.OVERLOADED;
+            }
+            if (window.exact) {
+                flags |= DecisionAuditLog.DEFERRED;
+            }
+            if (window.truncated) {
+                flags |= DecisionAuditLog.TRUNCATED;
+            }
+            window.audit(log, stage, flags);
+        }
+        return pass;
+    }
+
+    /**
+     * Start writing the audit file.  If it cannot be created the audit is
+     * turned off.
+     */
+    private void openAudit()
+    {
+        try {
+            audit = new DecisionAuditLog(new File(audit_file),
+                                         audit_buffer_records);
+            LOG.info("Writing audit records to " + audit.getFile());
+        } catch (IOException ioe) {
+            LOG.error("Cannot write audit file " + audit_file, ioe);
+            audit_file = null;
+        }
+    }
+
+    /**
+     * Can the triple or direction cut pass without looking at the doubles?
+     */
+    private boolean lastCutAlwaysPasses()
+    {
+        if (use_dc_version) {
+            return zenith_histogram_min < 0 && azimuth_histogram_min < 0;
+        }
+        return triple_min < 0;
     }
 
 
 
-    // Calculates the histogram for the given angle array in specified binning. Returns the maximum value of the histogram count
-    private ArrayList<Integer>  CalcHistogram(ArrayList<Double> Angles,int lower_bound, int upper_bound, int bin_size) {
 
-        ArrayList<Integer> hist_vals = new ArrayList<>();
-        ArrayList<Integer> Returnval= new ArrayList<>();
-        for (int j = lower_bound; j<upper_bound;j+=bin_size){
-            //include 180 and 360 ° in the last bins 160-180. Otherwise no meaningful mean value for the angle can be calculated
-            int upper_bin_size = j+bin_size;
-            if (j==upper_bound-bin_size){upper_bin_size = j+bin_size+1;}
-            int hist_counter = 0;
-            ArrayList<Double> angle_values = new ArrayList<>();
-            for (double k : Angles){
-                if (k>=j && k< upper_bin_size){
-                    hist_counter +=1;
-                    angle_values.add(k);
+    /**
+     * Run the trigger algorithm on the current window.  In pipelined mode
+     * the pair cuts are evaluated on a copy of the window by a worker
+     * thread and the result is applied later, in window order.
+     */
+    private void analyzeCurrentWindow()
+    {
+        if (sweep != null) {
+            analyzeSweepWindow();
+        } else if (pipeline_threads <= 0) {
+            FPTalgorithm();
+        } else if (passesCountCuts(slidingTimeWindow)) {
+            getPipeline().submit(StartTime, slidingTimeWindow, getGeometry());
+        } else {
+            //the window cannot trigger, so only the flush is left to do
+            flushFinishedTrigger();
+        }
+    }
+
+    /**
+     * Evaluate another parameter set on the windows of this trigger.  The
+     * hits are only fed to this trigger; its windows are evaluated for
+     * itself and for every added configuration, and each of them collects
+     * and sends its own triggers.  The candidate pairs of a window and
+     * their velocities are computed once for all of them.
+     *
+     * Sweep windows are evaluated in place: pipeline_threads and
+     * incremental_doubles are ignored.
+     *
+     * @param config trigger holding the cut parameters, with the same
+     *               time_window and time_window_separation as this one
+     */
+    void addSweepConfiguration(FaintParticleTrigger config)
+    {
+        if (config == this || config.sweep != null) {
+            throw new IllegalArgumentException("Cannot add " + config +
+                                               " to its own sweep");
+        }
+        if (config.time_window != time_window ||
+            config.time_window_separation != time_window_separation)
+        {
+            throw new IllegalArgumentException("Sweep configurations must" +
+                                               " share time_window and" +
+                                               " time_window_separation");
+        }
+
+        if (sweep == null) {
+            sweep = new ArrayList<FaintParticleTrigger>();
+            sweep.add(this);
+        }
+        sweep.add(config);
+    }
+
+    /**
+     * Run every sweep configuration on the current window.  The candidate
+     * pairs are only listed once some configuration passes its count cuts.
+     */
+    private void analyzeSweepWindow()
+    {
+        DOMGeometryTable geometry = getGeometry();
+
+        int num_pairs = -1;
+        for (FaintParticleTrigger config : sweep) {
+            config.flushBefore(StartTime);
+
+            SlidingTimeWindow window = config.getSweepWindow();
+            window.load(slidingTimeWindow);
+            if (!config.passesCountCuts(window)) {
+                continue;
+            }
+
+            if (num_pairs < 0) {
+                num_pairs = slidingTimeWindow.collectPairs(geometry,
+                                                           getSweepLimits(geometry));
+                monitor.addPairs(num_pairs);
+            }
+            window.selectSharedDoubles(slidingTimeWindow, num_pairs, geometry);
+            //Sweeps replay recorded hits, so a window which runs out of
+            //budget is evaluated again right away
+            if (config.passesPairCuts(window, geometry) ||
+                (window.deferred && config.passesExactly(window, geometry)))
+            {
+                config.addToTrigger(StartTime, window);
+            }
+        }
+    }
+
+    private SlidingTimeWindow getSweepWindow()
+    {
+        if (sweepWindow == null) {
+            sweepWindow = new SlidingTimeWindow(false);
+        }
+        return sweepWindow;
+    }
+
+    /**
+     * Get pair search limits wide enough for every sweep configuration.
+     *
+     * @param geometry current geometry table
+     *
+     * @return pair search limits
+     */
+    private DOMNeighbourhood getSweepLimits(DOMGeometryTable geometry)
+    {
+        double velocityMin = double_velocity_min;
+        double velocityMax = double_velocity_max;
+        for (FaintParticleTrigger config : sweep) {
+            velocityMin = Math.min(velocityMin, config.double_velocity_min);
+            velocityMax = Math.max(velocityMax, config.double_velocity_max);
+        }
+
+        long windowTicks = time_window*convert_to_ns;
+        if (sweepLimits == null ||
+            !sweepLimits.isFor(geometry, velocityMin, velocityMax,
+                               windowTicks))
+        {
+            sweepLimits = new DOMNeighbourhood(geometry, velocityMin,
+                                               velocityMax, windowTicks,
+                                               convert_to_km_s);
+        }
+        return sweepLimits;
+    }
+
+    private WindowPipeline getPipeline()
+    {
+        if (pipeline == null) {
+            //without pipeline_threads, one thread evaluates deferred windows
+            pipeline = new WindowPipeline(Math.max(pipeline_threads, 1));
+        }
+        return pipeline;
+    }
+
+    /**
+     * Get the start of the first window after StartTime which contains a
+     * hit, stepping by time_window_separation.
+     *
+     * @param hitTime hit time in UTC ticks, at or after the end of the
+     *                current window
+     *
+     * @return window start in UTC ticks
+     */
+    private long firstWindowStart(long hitTime)
+    {
+        final long separation = time_window_separation*convert_to_ns;
+        final long windowEnd = StartTime + time_window*convert_to_ns;
+        if (hitTime < windowEnd) {
+            return StartTime + separation;
+        }
+
+        return StartTime + ((hitTime - windowEnd) / separation + 1) * separation;
+    }
+
+    public void updateSlidingWindow(IUTCTime hitTimeUTC)
+    {
+        updateSlidingWindow(hitTimeUTC.longValue());
+    }
+
+    /**
+     * Slide the window forward until it contains a hit time, analyzing
+     * each window that is left behind.
+     *
+     * @param hitTime hit time in UTC ticks
+     */
+    public void updateSlidingWindow(long hitTime)
+    {
+
+        /*
+        If the hit lies outside of the timewindow, the current time window will be analyzed and bounds
+        adjusted unitl the new hit is within the new time window bounds. Afterwards it is added to the time window, which will be analyzed when
+        the next hit is outside of the window and triggers the while loop.
+
+         */
+        while (!slidingTimeWindow.inTimeWindow(hitTime, StartTime)) {
+
+            //If there is no hit inside of the time window move the bounds straight to the first window holding the new hit.
+            //This also covers a window which was emptied by the slide below.
+            if (slidingTimeWindow.size()==0) {
+
+                StartTime = firstWindowStart(hitTime);
+                //none of the skipped windows can extend the trigger -> flush if previous one was triggered
+                flushFinishedTrigger();
+                continue;
+            }
+
+
+            // Run the trigger algorithm on the hits that are within the time window
+            analyzeCurrentWindow();
+            /*
+            Since all other hits are within the current window and the hit that is currently analyzed is not yet in the window
+            The bound of the time window can be shifted. The windows are separated by a fixed time timeWindow_separation
+             */
+            StartTime += time_window_separation*convert_to_ns;
+            //Since the bounds are shifted the first hit(s) of the time window can now lie before the new window and are removed
+
+            while (slidingTimeWindow.firstTime() < StartTime) {
+
+                if (slidingTimeWindow.size()==1) {
+                    slidingTimeWindow.removeFirst();
+                    flushFinishedTrigger();
+
+                    break;
+
+                }
+                slidingTimeWindow.removeFirst();
+
+
+
+            }
+
+
+        }
+
+    }
+
+
+
+    /**
+     * Get the geometry table for the current DOM registry, building a new
+     * one if the registry has changed.
+     *
+     * @return DOM geometry table
+     */
+    DOMGeometryTable getGeometry()
+    {
+        return getRegistryGeometry(getDOMRegistry());
+    }
+
+    /**
+     * Get the DOM registry of the trigger manager.
+     *
+     * @return DOM registry
+     */
+    IDOMRegistry getDOMRegistry()
+    {
+        return getTriggerManager().getDOMRegistry();
+    }
+
+    private RegistryGeometryTable getRegistryGeometry(IDOMRegistry domRegistry)
+    {
+        if (geometry == null || !geometry.isFor(domRegistry)) {
+            releaseGeometryFile();
+            geometry = newRegistryGeometry(domRegistry);
+            if (pipeline_threads > 0 || defer_overloaded_windows) {
+                //worker threads read the table, so it must not grow later
+                geometry.indexAll();
+            }
+        } else if (geometryStandIn && geometryFile.isDone()) {
+            //the stand-in gave every DOM its index in the file
+            geometryStandIn = false;
+            RegistryGeometryTable mapped = mappedGeometry();
+            if (mapped != null) {
+                geometry = mapped;
+            }
+        }
+        return geometry;
+    }
+
+    /**
+     * Open the geometry file for a registry if geometry_cache_dir is set,
+     * otherwise compute the geometry as it is needed.  A file which has
+     * to be written first is written in the background, and a plain table
+     * is used until it is ready.
+     */
+    private RegistryGeometryTable newRegistryGeometry(IDOMRegistry domRegistry)
+    {
+        if (geometry_cache_dir != null) {
+            geometryFile = MappedGeometryTable.open(new File(geometry_cache_dir),
+                                                    domRegistry);
+            if (geometryFile.isDone()) {
+                RegistryGeometryTable mapped = mappedGeometry();
+                if (mapped != null) {
+                    return mapped;
+                }
+            } else {
+                geometryStandIn = true;
+                return MappedGeometryTable.standIn(domRegistry);
+            }
+        }
+        return new RegistryGeometryTable(domRegistry);
+    }
+
+    /**
+     * Get the mapped geometry once its file is ready, releasing it if the
+     * file could not be written or read.
+     *
+     * @return mapped table, or <tt>null</tt> if it failed
+     */
+    private RegistryGeometryTable mappedGeometry()
+    {
+        try {
+            return geometryFile.get();
+        } catch (ExecutionException ee) {
+            LOG.error("Cannot use geometry cache in " + geometry_cache_dir,
+                      ee.getCause());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        releaseGeometryFile();
+        return null;
+    }
+
+    private void releaseGeometryFile()
+    {
+        if (geometryFile != null) {
+            MappedGeometryTable.release(geometryFile);
+            geometryFile = null;
+            geometryStandIn = false;
+        }
+    }
+
+    /**
+     * Get the pair search limits for the current geometry and velocity cut.
+     *
+     * @param geometry current geometry table
+     *
+     * @return pair search limits
+     */
+    private DOMNeighbourhood getNeighbourhood(DOMGeometryTable geometry)
+    {
+        neighbourhood = updateNeighbourhood(neighbourhood, geometry);
+        return neighbourhood;
+    }
+
+    /**
+     * Check that pair search limits match the geometry and the current
+     * velocity cut, building new ones if they do not.
+     *
+     * @param limits cached limits (may be <tt>null</tt>)
+     * @param geometry current geometry table
+     *
+     * @return valid pair search limits
+     */
+    private DOMNeighbourhood updateNeighbourhood(DOMNeighbourhood limits,
+                                                 DOMGeometryTable geometry)
+    {
+        long windowTicks = time_window*convert_to_ns;
+        if (limits == null ||
+            !limits.isFor(geometry, double_velocity_min,
+                          double_velocity_max, windowTicks))
+        {
+            return new DOMNeighbourhood(geometry, double_velocity_min,
+                                        double_velocity_max, windowTicks,
+                                        convert_to_km_s);
+        }
+        return limits;
+    }
+
+    /**
+     * Get the geometry index of the DOM which recorded a hit.
+     */
+    int domIndex(IHitPayload hit)
+    {
+        IDOMRegistry domRegistry = getDOMRegistry();
+        return getRegistryGeometry(domRegistry).indexOf(getDOMFromHit(domRegistry,
+                                                                      hit));
+    }
+
+    private void flushTrigger() {
+        monitor.addTrigger();
+        emitTrigger(hitsWithinTriggerWindow);
+        hitsWithinTriggerWindow.clear();
+    }
+
+    /**
+     * Send hits on as a trigger request.
+     *
+     * @param hits hits in the trigger
+     */
+    void emitTrigger(HitCollection hits)
+    {
+        formTrigger(hits.list(), null, null);
+    }
+
+    /**
+     * Get the sliding window, so single stages can be run on their own.
+     *
+     * @return sliding time window
+     */
+    SlidingTimeWindow getSlidingTimeWindow()
+    {
+        return slidingTimeWindow;
+    }
+    private boolean haveTrigger()
+    {
+        return hitsWithinTriggerWindow.size() > 0;
+    }
+
+    private void reset()
+    {
+        if (pipeline != null) {
+            pipeline.shutdown();
+            pipeline = null;
+        }
+        if (sweep != null) {
+            for (FaintParticleTrigger config : sweep) {
+                if (config != this) {
+                    config.reset();
+                }
+            }
+        }
+        numDeferredWindows.set(0);
+        if (geometryFile != null) {
+            //the table is opened again with the next hit
+            releaseGeometryFile();
+            geometry = null;
+        }
+        if (audit != null) {
+            audit.close();
+            audit = null;
+        }
+        slidingTimeWindow.clear();
+        hitsWithinTriggerWindow.clear();
+        lastHitTime = NO_TIME;
+        StartTime = NO_TIME;
+        trigger_window_end = 0;
+        monitor.clear();
+        domRates.clear();
+    }
+    @Override
+    public void resetAlgorithm()
+    {
+        reset();
+
+        super.resetAlgorithm();
+    }
+    public Integer getSlidingTimeWindowContent(){
+
+            return slidingTimeWindow.size();
+    }
+
+    /**
+     * Get the start of the current time window.
+     *
+     * @return start time, or <tt>null</tt> before the first hit
+     */
+    public IUTCTime getStartTime()
+    {
+        return (StartTime == NO_TIME ? null : new UTCTime(StartTime));
+    }
+
+    /**
+     * Get the time of the last hit passed to the trigger.
+     *
+     * @return hit time, or <tt>null</tt> before the first hit
+     */
+    public IUTCTime getLastHitTime()
+    {
+        return (lastHitTime == NO_TIME ? null : new UTCTime(lastHitTime));
+    }
+ 
+    /**
+     * Hits currently within the sliding time window, kept as parallel
+     * primitive arrays in a ring buffer.  Every hit gets an ever-increasing
+     * sequence number and lives in slot <tt>seq &amp; mask</tt>; window index
+     * <tt>i</tt> is the <tt>i</tt>-th oldest hit.
+     */
+    final class SlidingTimeWindow
+    {
+        private static final int INITIAL_CAPACITY = 64;
+
+        /** UTC time of each hit */
+        private long[] times = new long[INITIAL_CAPACITY];
+        /** geometry index of the DOM of each hit */
+        private int[] doms = new int[INITIAL_CAPACITY];
+        /** slots holding SLC hits */
+        private BitSet slc = new BitSet(INITIAL_CAPACITY);
+        /** hit payloads, only needed to form the trigger request */
+        private IHitPayload[] hits = new IHitPayload[INITIAL_CAPACITY];
+        /**
+         * adjacency rows: sequence numbers of the later double partners of
+         * each hit, in time order
+         */
+        private int[][] partners = new int[INITIAL_CAPACITY][];
+        private int[] numPartners = new int[INITIAL_CAPACITY];
+        /**
+         * zenith and azimuth bins of each double, packed by directionBins()
+         * and kept next to the partner (DC version only)
+         */
+        private int[][] partnerBins = new int[INITIAL_CAPACITY][];
+        private int mask = INITIAL_CAPACITY - 1;
+
+        /** zenith and azimuth histograms of the doubles in the window */
+        private DirectionHistogram zenithHistogram;
+        private DirectionHistogram azimuthHistogram;
+        /** geometry the histogrammed directions were taken from */
+        private DOMGeometryTable histogramGeometry;
+
+        /**
+         * <tt>true</tt> for the window fed by analyzeWindow(),
+         * <tt>false</tt> for copies evaluated by pipeline workers
+         */
+        private final boolean live;
+        /** pair search limits lent to a copy while a worker evaluates it */
+        private DOMNeighbourhood workerLimits;
+
+        /** candidate pairs of one hit, handed to the velocity kernel */
+        private double[] pairDistance = new double[INITIAL_CAPACITY];
+        private long[] pairTimeDiff = new long[INITIAL_CAPACITY];
+        private int[] pairSeq = new int[INITIAL_CAPACITY];
+        private int[] pairPassed = new int[INITIAL_CAPACITY];
+
+        /**
+         * hits by DOM (incremental_doubles only): sequence number of the
+         * newest hit on each DOM index, and of the previous hit on the same
+         * DOM for each slot.  Entries are only trusted if they point to a
+         * hit inside the window on that DOM.
+         */
+        private int[] lastOnDom = new int[0];
+        private int[] prevOnDom = new int[INITIAL_CAPACITY];
+
+        /** sequence number of the oldest hit */
+        private int first;
+        /** sequence number given to the next hit */
+        private int next;
+        /** number of doubles listed in partners */
+        private int numDoubles;
+        /** number of SLC hits in the window */
+        private int numSLC;
+        /** candidate pairs handed to the velocity cut since the last evaluation */
+        private int numPairsExamined;
+        /**
+         * candidate pairs examined by addDoubles() since the window was last
+         * evaluated, charged to window_pair_budget
+         */
+        private long intakePairs;
+        /** has a hit been added without looking for its earlier partners? */
+        private boolean skippedDoubles;
+        /** sequence number of the newest such hit */
+        private int skippedSeq;
+        /** are the cuts on this window timed for monitoring? */
+        private boolean timed;
+        /** were the doubles taken from a shared pair list (sweep only)? */
+        private boolean doublesSelected;
+
+        /** cut values of the last evaluation, NOT_COMPUTED if not reached */
+        private int cutDoubles;
+        private int cutTriples;
+        private int cutZenithMax;
+        private int cutAzimuthMax;
+
+        /** is this a deferred window, evaluated without a budget? */
+        private boolean exact;
+        /** did the last evaluation defer this window for an exact one? */
+        private boolean deferred;
+        /**
+         * pair budget left for the current evaluation, unlimited unless
+         * startBudget() set one
+         */
+        private long pairsLeft = Long.MAX_VALUE;
+        /** System.nanoTime() after which the evaluation is over budget */
+        private long deadline = Long.MAX_VALUE;
+        /** did the current evaluation run out of budget? */
+        private boolean overBudget;
+        /**
+         * did a count of the current evaluation stop as soon as its cut
+         * was settled?
+         */
+        private boolean truncated;
+
+        /**
+         * candidate pairs of the whole window with their velocities, shared
+         * by the configurations of a sweep
+         */
+        private int[] sharedFrom;
+        private int[] sharedTo;
+        private double[] sharedVelocity;
+
+        SlidingTimeWindow(boolean live)
+        {
+            this.live = live;
+        }
+
+        /**
+         * Copy the hits of another window, keeping their sequence numbers.
+         */
+        private SlidingTimeWindow(SlidingTimeWindow window)
+        {
+            live = false;
+            load(window);
+        }
+
+        /**
+         * Replace the hits of this window copy with those of another
+         * window, keeping their sequence numbers.  No doubles are kept.
+         */
+        private void load(SlidingTimeWindow window)
+        {
+            next = first;
+            while (mask < window.size() - 1) {
+                grow();
+            }
+
+            for (int s = window.first; s != window.next; s++) {
+                int from = s & window.mask;
+                int to = s & mask;
+                times[to] = window.times[from];
+                doms[to] = window.doms[from];
+                slc.set(to, window.slc.get(from));
+                hits[to] = window.hits[from];
+                numPartners[to] = 0;
+            }
+            first = window.first;
+            next = window.next;
+            numSLC = window.numSLC;
+            numDoubles = 0;
+            timed = window.timed;
+            doublesSelected = false;
+        }
+
+        /**
+         * Drop the references to the hits of this window copy once it has
+         * been applied, so an idle copy does not keep payloads alive.
+         */
+        private void release()
+        {
+            for (int s = first; s != next; s++) {
+                hits[s & mask] = null;
+            }
+        }
+
+        /**
+         * Make a copy of the hits in the window which can be evaluated on
+         * another thread.  Doubles found in the copy are not shared with
+         * this window.
+         *
+         * @return window copy
+         */
+        SlidingTimeWindow copy()
+        {
+            return new SlidingTimeWindow(this);
+        }
+
+        /**
+         * Are the doubles found as hits enter the window?  Only the live
+         * window does this, and only when windows are evaluated in place.
+         */
+        private boolean tracksDoubles()
+        {
+            return live && incremental_doubles && pipeline_threads == 0;
+        }
+
+        /**
+         * Forget the cut values of the last evaluation.
+         */
+        private void clearCutValues()
+        {
+            cutDoubles = DecisionAuditLog.NOT_COMPUTED;
+            cutTriples = DecisionAuditLog.NOT_COMPUTED;
+            cutZenithMax = DecisionAuditLog.NOT_COMPUTED;
+            cutAzimuthMax = DecisionAuditLog.NOT_COMPUTED;
+            overBudget = false;
+            truncated = false;
+            deferred = false;
+            intakePairs = 0;
+        }
+
+        /**
+         * Add the cut values of this window to an audit log.
+         *
+         * @param log audit log
+         * @param stage last cut applied
+         * @param flags DecisionAuditLog flags
+         */
+        private void audit(DecisionAuditLog log, int stage, int flags)
+        {
+            long firstTime = (size() > 0 ? time(0) : NO_TIME);
+            log.add(firstTime, size(), numSLC, cutDoubles, cutTriples,
+                    cutZenithMax, cutAzimuthMax, stage, flags);
+        }
+
+        /**
+         * Start the work budget for an evaluation of the pair cuts.
+         */
+        private void startBudget()
+        {
+            overBudget = false;
+            if (exact || window_pair_budget <= 0) {
+                pairsLeft = Long.MAX_VALUE;
+            } else {
+                pairsLeft = window_pair_budget;
+            }
+            if (exact || window_time_budget <= 0) {
+                deadline = Long.MAX_VALUE;
+            } else {
+                deadline = System.nanoTime() + window_time_budget;
+            }
+        }
+
+        /**
+         * Are doubles missing because a hit in the window was added without
+         * looking for its earlier partners?  Those doubles can only be
+         * missing while the hit is in the window.
+         */
+        private boolean missesDoubles()
+        {
+            return skippedDoubles && skippedSeq - first >= 0;
+        }
+
+        /**
+         * Charge work to the budget.
+         *
+         * @param work hit pairs or merge steps done since the last call
+         *
+         * @return <tt>true</tt> if the budget is used up
+         */
+        private boolean spend(long work)
+        {
+            pairsLeft -= work;
+            if (pairsLeft < 0 ||
+                (deadline != Long.MAX_VALUE && System.nanoTime() > deadline))
+            {
+                overBudget = true;
+            }
+            return overBudget;
+        }
+
+        /**
+         * Get the pair search limits for the thread evaluating this window.
+         */
+        private DOMNeighbourhood limits(DOMGeometryTable geometry)
+        {
+            if (live) {
+                return getNeighbourhood(geometry);
+            }
+            return workerLimits;
+        }
+
+        public int size()
+        {
+            return next - first;
+        }
+
+        public IHitPayload get(int i)
+        {
+            return hits[(first + i) & mask];
+        }
+
+        public IHitPayload getFirst()
+        {
+            return hits[first & mask];
+        }
+
+        private long time(int i)
+        {
+            return times[(first + i) & mask];
+        }
+
+        private int dom(int i)
+        {
+            return doms[(first + i) & mask];
+        }
+
+        private boolean isSLC(int i)
+        {
+            return slc.get((first + i) & mask);
+        }
+
+        /**
+         * Append the window hits from a sequence number onwards.  Hits which
+         * have already left the window are skipped.
+         *
+         * @param collection collection to extend
+         * @param fromSeq sequence number of the first hit to append
+         *
+         * @return sequence number following the newest hit
+         */
+        private int appendTo(HitCollection collection, int fromSeq)
+        {
+            for (int s = (fromSeq - first > 0 ? fromSeq : first); s != next; s++) {
+                collection.add(hits[s & mask]);
+            }
+            return next;
+        }
+
+        /**
+         * UTC time of the oldest hit.
+         */
+        private long firstTime()
+        {
+            return times[first & mask];
+        }
+
+        /**
+         * Is this hit already in the window?  Hits arrive in time order, so
+         * only the newest hits with the same time need to be checked.
+         */
+        public boolean contains(IHitPayload hit)
+        {
+            final long time = hit.getUTCTime();
+            for (int s = next - 1; s - first >= 0; s--) {
+                int slot = s & mask;
+                if (times[slot] != time) {
+                    break;
+                }
+                if (hit.equals(hits[slot])) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Add a hit which is not older than any hit in the window.
+         *
+         * @param hit hit payload
+         * @param dom geometry index of the hit's DOM
+         * @param geometry geometry used to find doubles incrementally
+         */
+        public void add(IHitPayload hit, int dom, DOMGeometryTable geometry)
+        {
+            if (size() > mask) {
+                grow();
+            }
+
+            final long time = hit.getUTCTime();
+            int slot = next & mask;
+            //the DOM is needed to look up the direction of new doubles
+            doms[slot] = dom;
+            if (tracksDoubles()) {
+                addDoubles(time, dom, geometry);
+                indexHit(slot, dom);
+            }
+
+            times[slot] = time;
+            if (hit.isSLC()) {
+                slc.set(slot);
+                numSLC++;
+            } else {
+                slc.clear(slot);
+            }
+            hits[slot] = hit;
+            numPartners[slot] = 0;
+            next++;
+        }
+
+        /**
+         * Remove the oldest hit.  As it is the oldest hit, it is the earlier
+         * hit of all of its doubles, so they are dropped with it.
+         *
+         * @return removed hit
+         */
+        public IHitPayload removeFirst()
+        {
+            int slot = first & mask;
+            IHitPayload hit = hits[slot];
+            hits[slot] = null;
+            if (streamingDirections() && zenithHistogram != null) {
+                for (int p = 0; p < numPartners[slot]; p++) {
+                    removeBins(partnerBins[slot][p]);
+                }
+            }
+            numDoubles -= numPartners[slot];
+            if (slc.get(slot)) {
+                numSLC--;
+            }
+            first++;
+            return hit;
+        }
+
+        public void clear()
+        {
+            while (size() > 0) {
+                removeFirst();
+            }
+            numDoubles = 0;
+        }
+
+        public boolean HitThreshold() {return (size() >= hit_min && size() <= hit_max);}
+
+        /**
+         * Find all doubles in the window.  The later partners of each hit
+         * are listed in time order in its partners row.
+         *
+         * The search gives up as soon as the remaining hit pairs can no
+         * longer bring the count up to double_min, and if
+         * <tt>countOnly</tt> is set it also stops once double_min is
+         * reached.  In both cases the rows are left incomplete.
+         *
+         * @param geometry current geometry table
+         * @param countOnly <tt>true</tt> if the doubles themselves are not
+         *                  needed after this cut
+         *
+         * @return number of doubles (possibly only as many as needed to
+         *         settle the cut)
+         */
+        public int DoubleThreshold(DOMGeometryTable geometry, boolean countOnly)
+        {
+            numDoubles = 0;
+            for (int s = first; s != next; s++) {
+                numPartners[s & mask] = 0;
+            }
+            if (use_dc_version) {
+                prepareHistograms(geometry);
+            }
+            if (countOnly && numDoubles >= double_min) {
+                truncated = true;
+                return numDoubles;
+            }
+
+            DOMNeighbourhood limits = limits(geometry);
+
+            //List is time sorted: Dont compare combinations with itsself and commutative combinations
+
+            for (int j = 0;j<size();j++){
+                int dom_j = dom(j);
+                if (dom_j == DOMGeometryTable.NO_DOM) {
+                    continue;
+                }
+                limits.cover(dom_j);
+                long time_j = time(j);
+                long max_timediff = limits.maxTimeDiff(dom_j);
+                int num_pairs = 0;
+                int k =j+1;
+                for(;k<size();k++) {
+                    //All later hits are too late to pass the minimum velocity
+                    if (time(k) - time_j > max_timediff) {
+                        break;
+                    }
+                    //DOMs too far apart to pass the maximum velocity
+                    if (!limits.isNeighbour(dom_j, dom(k))) {
+                        continue;
+                    }
+                    addPair(num_pairs++, geometry.distance(dom_j, dom(k)),
+                            time(k) - time_j, first + k);
+                }
+
+                int num_passed = selectDoubles(num_pairs);
+                for (int p = 0; p < num_passed; p++) {
+                    addPartner((first + j) & mask, pairSeq[pairPassed[p]]);
+                    if (countOnly && numDoubles >= double_min) {
+                        truncated = j + 1 < size() || p + 1 < num_passed;
+                        return numDoubles;
+                    }
+                }
+
+                //Stop if all pairs among the later hits cannot reach double_min
+                long remaining = size() - j - 1;
+                if (numDoubles + remaining * (remaining - 1) / 2 < double_min) {
+                    truncated = remaining > 1;
+                    return numDoubles;
+                }
+
+                //Out of budget: the rows so far are a subset of the doubles
+                if (spend(k - j - 1)) {
+                    return numDoubles;
                 }
             }
-            hist_vals.add(hist_counter);
+            return numDoubles;
+        }
+
+        /**
+         * Find the doubles formed by a new hit with the hits already in the
+         * window (incremental_doubles only).
+         */
+        private void addDoubles(long time, int dom, DOMGeometryTable geometry)
+        {
+            if (dom == DOMGeometryTable.NO_DOM) {
+                return;
+            }
 
+            //Out of budget: the hit's doubles are not looked for, and every
+            //window holding it counts as overloaded
+            if (window_pair_budget > 0 && intakePairs >= window_pair_budget) {
+                skippedDoubles = true;
+                skippedSeq = next;
+                return;
+            }
 
-            //Select the bin with maximum counts
+            DOMNeighbourhood limits = limits(geometry);
+            limits.cover(dom);
+            long max_timediff = limits.maxTimeDiff(dom);
 
+            boolean streaming = streamingDirections();
+            if (use_dc_version) {
+                prepareHistograms(geometry);
+            }
 
+            int num_pairs = 0;
+            int num_candidates = limits.numCandidates(dom);
+            int[] candidates = limits.candidates(dom);
+            if (num_candidates >= 0 &&
+                num_candidates +
+                domRates.expectedHits(candidates, num_candidates,
+                                      time_window * 1.0E-9) < size())
+            {
+                //The candidate DOMs and their expected hits are fewer than
+                //the hits in the window: walk back over the recent hits on
+                //each candidate DOM
+                for (int c = 0; c < num_candidates; c++) {
+                    int other = candidates[c];
+                    for (int s = lastHit(other); s != next;
+                         s = previousHit(s, other))
+                    {
+                        int slot = s & mask;
+                        if (time - times[slot] > max_timediff) {
+                            break;
+                        }
+                        addPair(num_pairs++, geometry.distance(other, dom),
+                                time - times[slot], s);
+                    }
+                }
+            } else {
+                //Walk back from the newest hit until the time limit is passed
+                for (int s = next - 1; s - first >= 0; s--) {
+                    int slot = s & mask;
+                    if (time - times[slot] > max_timediff) {
+                        break;
+                    }
+                    if (limits.isNeighbour(dom, doms[slot])) {
+                        addPair(num_pairs++, geometry.distance(doms[slot], dom),
+                                time - times[slot], s);
+                    }
+                }
+            }
 
+            intakePairs += num_pairs;
+            int num_passed = selectDoubles(num_pairs);
+            for (int p = 0; p < num_passed; p++) {
+                int slot = pairSeq[pairPassed[p]] & mask;
+                addPartner(slot, next);
+                if (streaming) {
+                    addBins(partnerBins[slot][numPartners[slot] - 1]);
+                }
+            }
         }
-        Returnval.add (Collections.max(hist_vals));
-        return Returnval;
-    }
 
+        /**
+         * Make a new hit the newest one on its DOM.
+         */
+        private void indexHit(int slot, int dom)
+        {
+            if (dom == DOMGeometryTable.NO_DOM) {
+                return;
+            }
+            if (dom >= lastOnDom.length) {
+                lastOnDom = Arrays.copyOf(lastOnDom,
+                                          Math.max(dom + 1,
+                                                   lastOnDom.length * 2));
+            }
+            prevOnDom[slot] = lastOnDom[dom];
+            lastOnDom[dom] = next;
+        }
 
-    private void flushTrigger() {
-        formTrigger(hitsWithinTriggerWindow.list(), null, null);
-        hitsWithinTriggerWindow.clear();
-    }
-    private boolean haveTrigger()
-    {
-        return hitsWithinTriggerWindow.size() > 0;
-    }
+        /**
+         * Is a sequence number that of a hit in the window on this DOM?
+         */
+        private boolean isHitOn(int seq, int dom)
+        {
+            return seq - first >= 0 && next - seq > 0 &&
+                doms[seq & mask] == dom;
+        }
 
-    private void reset()
-    {
-        slidingTimeWindow.clear();
-        hitsWithinTriggerWindow.clear();
-        lastHitTime = null;
-    }
-    @Override
-    public void resetAlgorithm()
-    {
-        reset();
+        /**
+         * Get the newest hit in the window on a DOM.
+         *
+         * @return sequence number, or <tt>next</tt> if there is none
+         */
+        private int lastHit(int dom)
+        {
+            if (dom >= lastOnDom.length || !isHitOn(lastOnDom[dom], dom)) {
+                return next;
+            }
+            return lastOnDom[dom];
+        }
 
-        super.resetAlgorithm();
-    }
-    public Integer getSlidingTimeWindowContent(){
+        /**
+         * Get the hit in the window before another one on the same DOM.
+         *
+         * @return sequence number, or <tt>next</tt> if there is none
+         */
+        private int previousHit(int seq, int dom)
+        {
+            int prev = prevOnDom[seq & mask];
+            if (prev - seq >= 0 || !isHitOn(prev, dom)) {
+                return next;
+            }
+            return prev;
+        }
 
-            return slidingTimeWindow.size();
-    }
- 
-    final class SlidingTimeWindow
-            extends HitCollection
-    {
+        /**
+         * Queue a candidate pair for selectDoubles().  Only pairs of two
+         * different, known DOMs may be queued.
+         *
+         * @param idx position in the pair block
+         * @param distance DOM distance in meters
+         * @param timeDiff time difference in UTC ticks
+         * @param seq sequence number of the partner hit
+         */
+        private void addPair(int idx, double distance, long timeDiff, int seq)
+        {
+            if (idx == pairDistance.length) {
+                final int len = idx * 2;
+                pairDistance = Arrays.copyOf(pairDistance, len);
+                pairTimeDiff = Arrays.copyOf(pairTimeDiff, len);
+                pairSeq = Arrays.copyOf(pairSeq, len);
+                pairPassed = Arrays.copyOf(pairPassed, len);
+            }
+            pairDistance[idx] = distance;
+            pairTimeDiff[idx] = timeDiff;
+            pairSeq[idx] = seq;
+        }
 
-        public boolean HitThreshold() {return (size() >= hit_min && size() <= hit_max);}
-        public ArrayList<Integer> DoubleThreshold(IDOMRegistry domRegistry )
+        /**
+         * Apply the double velocity cut to the queued pairs.
+         *
+         * @param num_pairs number of queued pairs
+         *
+         * @return number of doubles, whose pair indices are in pairPassed
+         */
+        private int selectDoubles(int num_pairs)
         {
-            ArrayList<Integer> Indices = new ArrayList<>();
+            if (num_pairs == 0) {
+                return 0;
+            }
+            numPairsExamined += num_pairs;
+            return PairVelocityKernel.getInstance().select(pairDistance,
+                                                           pairTimeDiff,
+                                                           num_pairs,
+                                                           double_velocity_min,
+                                                           double_velocity_max,
+                                                           convert_to_km_s,
+                                                           pairPassed);
+        }
 
-            //List is time sorted: Dont compare combinations with itsself and commutative combinations
+        private void addPartner(int slot, int seq)
+        {
+            int[] list = partners[slot];
+            if (list == null) {
+                list = new int[8];
+                partners[slot] = list;
+            } else if (numPartners[slot] == list.length) {
+                list = Arrays.copyOf(list, list.length * 2);
+                partners[slot] = list;
+            }
+            if (use_dc_version) {
+                //the direction is looked up once, when the double is found
+                int[] bins = partnerBins[slot];
+                if (bins == null || bins.length < list.length) {
+                    bins = (bins == null ? new int[list.length] :
+                            Arrays.copyOf(bins, list.length));
+                    partnerBins[slot] = bins;
+                }
+                bins[numPartners[slot]] = directionBins(doms[slot],
+                                                        doms[seq & mask]);
+            }
+            list[numPartners[slot]++] = seq;
+            numDoubles++;
+        }
 
-            for (int j = 0;j<size();j++){
-                for(int k =j+1;k<size();k++) {
-                    DOMInfo hit1_dom = getDOMFromHit(domRegistry, get(j));
-                    DOMInfo hit2_dom = getDOMFromHit(domRegistry, get(k));
-                    if (hit1_dom != hit2_dom){
-                        long hit1_time = get(j).getUTCTime();
-                        long hit2_time = get(k).getUTCTime();
-                        double dist_jk = domRegistry.distanceBetweenDOMs(hit1_dom, hit2_dom);
-                        //timediff should be positive anyway due to time ordering of the list
-                        double timediff_jk = Math.abs(hit2_time-hit1_time);
-                        //velocity in km/s
-                        double vel_jk = dist_jk/timediff_jk*convert_to_km_s;
-
-                        if (vel_jk>double_velocity_min && vel_jk < double_velocity_max){
-                            Collections.addAll(Indices,j,k);
-                            //Threshold exceeded: return empty list -> below threshold
+        /**
+         * List every candidate pair in the window with its velocity, for
+         * the configurations of a sweep to select their doubles from.  The
+         * pairs are listed by earlier hit and then by later hit, in time
+         * order.
+         *
+         * @param geometry current geometry table
+         * @param limits pair search limits covering every configuration
+         *
+         * @return number of pairs
+         */
+        private int collectPairs(DOMGeometryTable geometry,
+                                 DOMNeighbourhood limits)
+        {
+            if (sharedFrom == null) {
+                sharedFrom = new int[INITIAL_CAPACITY];
+                sharedTo = new int[INITIAL_CAPACITY];
+                sharedVelocity = new double[INITIAL_CAPACITY];
+            }
 
-                        }
+            int num_pairs = 0;
+            for (int j = 0; j < size(); j++) {
+                int dom_j = dom(j);
+                if (dom_j == DOMGeometryTable.NO_DOM) {
+                    continue;
+                }
+                limits.cover(dom_j);
+                long time_j = time(j);
+                long max_timediff = limits.maxTimeDiff(dom_j);
+                for (int k = j + 1; k < size(); k++) {
+                    if (time(k) - time_j > max_timediff) {
+                        break;
+                    }
+                    if (!limits.isNeighbour(dom_j, dom(k))) {
+                        continue;
                     }
 
+                    if (num_pairs == sharedFrom.length) {
+                        final int len = num_pairs * 2;
+                        sharedFrom = Arrays.copyOf(sharedFrom, len);
+                        sharedTo = Arrays.copyOf(sharedTo, len);
+                        sharedVelocity = Arrays.copyOf(sharedVelocity, len);
+                    }
+                    //Same expression as the velocity kernels
+                    double distance = geometry.distance(dom_j, dom(k));
+                    double timediff = Math.abs(time(k) - time_j);
+                    sharedFrom[num_pairs] = first + j;
+                    sharedTo[num_pairs] = first + k;
+                    sharedVelocity[num_pairs] =
+                        distance/timediff*convert_to_km_s;
+                    num_pairs++;
                 }
+            }
+            return num_pairs;
+        }
 
+        /**
+         * Take the doubles of this window copy from the pairs listed by
+         * collectPairs() on the window it was loaded from.  Unlike
+         * DoubleThreshold() every double is found.
+         *
+         * @param window window holding the shared pairs
+         * @param num_pairs number of shared pairs
+         */
+        private void selectSharedDoubles(SlidingTimeWindow window,
+                                         int num_pairs,
+                                         DOMGeometryTable geometry)
+        {
+            if (use_dc_version) {
+                prepareHistograms(geometry);
+            }
+            for (int p = 0; p < num_pairs; p++) {
+                double vel = window.sharedVelocity[p];
+                if (vel>double_velocity_min && vel < double_velocity_max) {
+                    addPartner(window.sharedFrom[p] & mask,
+                               window.sharedTo[p]);
+                }
             }
-            return Indices;
+            doublesSelected = true;
         }
 
-        private int TripleThreshold(ArrayList<Integer> Doub_Indices, IDOMRegistry domRegistry) {
+        /**
+         * Count the triples: chains of doubles (0,1) (1,2) where (0,2) is a
+         * double as well.  Both partner rows are sorted in time, so the
+         * hits 2 shared by the rows of 0 and 1 are found with a merge.
+         * Counting stops once triple_min is exceeded.
+         */
+        int TripleThreshold() {
             int triple_combinations = 0;
 
-            for (int j = 0; j < Doub_Indices.size()-2; j+= 2) {
-                for (int k = j + 2; k <= Doub_Indices.size()-2; k += 2) {
-                    //Check for two doubles that share the middle hit in time (0,1) (1,2) -> (0,1,2)
-                    if (Doub_Indices.get(j+1)== Doub_Indices.get(k)) {
-                        // As the doubles are velocity consistent only the third component (0-2) is checked
-                        DOMInfo hit1_dom = getDOMFromHit(domRegistry, get(Doub_Indices.get(j)));
-                        DOMInfo hit2_dom = getDOMFromHit(domRegistry, get(Doub_Indices.get(k+1)));
-                        long hit1_time =get(Doub_Indices.get(j)).getUTCTime();
-                        long hit2_time = get(Doub_Indices.get(k+1)).getUTCTime();
-                        if (hit1_dom != hit2_dom){
-                            double dist_jk = domRegistry.distanceBetweenDOMs(hit1_dom,hit2_dom);
-                            //timediff should be positive anyway due to time ordering of the list
-                            double timediff_jk = Math.abs(hit2_time-hit1_time);
-                            //velocity in km/s
-                            double vel_jk = dist_jk/timediff_jk*convert_to_km_s;
-                            if (vel_jk>double_velocity_min && vel_jk < double_velocity_max){
-                                triple_combinations+=1;
-
+            for (int s = first; s != next; s++) {
+                int slot_0 = s & mask;
+                int[] row_0 = partners[slot_0];
+                int num_0 = numPartners[slot_0];
+                int steps = 0;
+                for (int p = 0; p < num_0; p++) {
+                    int slot_1 = row_0[p] & mask;
+                    int[] row_1 = partners[slot_1];
+                    int num_1 = numPartners[slot_1];
+
+                    //Partners of 0 before hit 1 cannot be partners of 1
+                    int i = p + 1;
+                    int k = 0;
+                    steps += num_0 - i + num_1;
+                    while (i < num_0 && k < num_1) {
+                        int diff = row_0[i] - row_1[k];
+                        if (diff < 0) {
+                            i++;
+                        } else if (diff > 0) {
+                            k++;
+                        } else {
+                            triple_combinations+=1;
+                            if (triple_combinations > triple_min) {
+                                truncated = true;
+                                return triple_combinations;
                             }
+                            i++;
+                            k++;
                         }
                     }
-
                 }
 
+                //Out of budget: the rows so far are a subset of the triples
+                if (spend(steps)) {
+                    return triple_combinations;
+                }
             }
 
-
             return triple_combinations;
 
         }
 
-        public ArrayList<Integer>  DirectionThreshold(ArrayList<Integer> Doub_Indices,IDOMRegistry domRegistry) {
-            ArrayList<Integer> final_zen_azi = new ArrayList<>();
-            ArrayList<Double> Zenith_values = new ArrayList<>();
-            ArrayList<Double> Azimuth_values = new ArrayList<>();
-
-            for (int j = 0; j < Doub_Indices.size(); j+= 2) {
-                DOMInfo hit1_dom = getDOMFromHit(domRegistry, get(Doub_Indices.get(j)));
-                DOMInfo hit2_dom = getDOMFromHit(domRegistry, get(Doub_Indices.get(j+1)));
-                double zenith = domRegistry.directionBetweenDOMs(hit1_dom, hit2_dom)[0];
-                double azimuth = domRegistry.directionBetweenDOMs(hit1_dom, hit2_dom)[1];
-                Zenith_values.add(Math.toDegrees(zenith));
-                Azimuth_values.add(Math.toDegrees(azimuth));
-
+        /**
+         * Fill the zenith and azimuth histograms with the directions of all
+         * doubles.  When the doubles are tracked incrementally in DC mode the
+         * histograms are already up to date.
+         */
+        public void DirectionThreshold(DOMGeometryTable geometry) {
+            prepareHistograms(geometry);
+            if (!streamingDirections()) {
+                fillHistograms();
             }
-            ArrayList<Integer> hist_zenith= CalcHistogram(Zenith_values,0,180,histogram_binning);
-            ArrayList<Integer> hist_azimuth= CalcHistogram(Azimuth_values,0,360,histogram_binning);
-            final_zen_azi.addAll(hist_azimuth);
-            final_zen_azi.addAll(hist_zenith);
+        }
 
-            return final_zen_azi;
+        /**
+         * Are the direction histograms updated as doubles come and go?
+         */
+        private boolean streamingDirections()
+        {
+            return tracksDoubles() && use_dc_version;
         }
 
-        public double SlcFractionThreshold() {
+        /**
+         * Make sure the histograms match histogram_binning and the geometry,
+         * refilling them from the current doubles if they were rebuilt.
+         */
+        private void prepareHistograms(DOMGeometryTable geometry)
+        {
+            if (zenithHistogram == null || histogramGeometry != geometry ||
+                !zenithHistogram.isFor(180, histogram_binning))
+            {
+                zenithHistogram = new DirectionHistogram(180, histogram_binning);
+                azimuthHistogram = new DirectionHistogram(360, histogram_binning);
+                histogramGeometry = geometry;
+
+                //the bins of the current doubles belong to the old binning
+                if (use_dc_version) {
+                    for (int s = first; s != next; s++) {
+                        int slot = s & mask;
+                        for (int p = 0; p < numPartners[slot]; p++) {
+                            partnerBins[slot][p] =
+                                directionBins(doms[slot],
+                                              doms[partners[slot][p] & mask]);
+                        }
+                    }
+                }
+                fillHistograms();
+            }
+        }
 
-            int hlc_count = 0;
-            int slc_count = 0;
-            for (IHitPayload hit2 : this) {
-                if (hit2.isSLC()) {
-                    slc_count += 1;
+        /**
+         * Fill the histograms from the current doubles.  Outside the DC
+         * version no bins are stored with the doubles, so their directions
+         * are looked up here.
+         */
+        private void fillHistograms()
+        {
+            zenithHistogram.clear();
+            azimuthHistogram.clear();
+            for (int s = first; s != next; s++) {
+                int slot = s & mask;
+                if (use_dc_version) {
+                    int[] bins = partnerBins[slot];
+                    for (int p = 0; p < numPartners[slot]; p++) {
+                        addBins(bins[p]);
+                    }
                 } else {
-                    hlc_count += 1;
+                    int[] row = partners[slot];
+                    for (int p = 0; p < numPartners[slot]; p++) {
+                        addBins(directionBins(doms[slot],
+                                              doms[row[p] & mask]));
+                    }
                 }
             }
+        }
+
+        /**
+         * Look up the direction of a double and pack its zenith bin into
+         * the upper and its azimuth bin into the lower 16 bits.
+         */
+        private int directionBins(int dom_1, int dom_2)
+        {
+            int zenith =
+                zenithHistogram.bin(histogramGeometry.zenith(dom_1, dom_2));
+            int azimuth =
+                azimuthHistogram.bin(histogramGeometry.azimuth(dom_1, dom_2));
+            return (zenith << 16) | (azimuth & 0xffff);
+        }
+
+        private void addBins(int packed)
+        {
+            int zenith = (short) (packed >>> 16);
+            int azimuth = (short) packed;
+            if (zenith != DirectionHistogram.NO_BIN) {
+                zenithHistogram.addBin(zenith);
+            }
+            if (azimuth != DirectionHistogram.NO_BIN) {
+                azimuthHistogram.addBin(azimuth);
+            }
+        }
+
+        private void removeBins(int packed)
+        {
+            int zenith = (short) (packed >>> 16);
+            int azimuth = (short) packed;
+            if (zenith != DirectionHistogram.NO_BIN) {
+                zenithHistogram.removeBin(zenith);
+            }
+            if (azimuth != DirectionHistogram.NO_BIN) {
+                azimuthHistogram.removeBin(azimuth);
+            }
+        }
+
+        public double SlcFractionThreshold() {
+
+            int slc_count = numSLC;
+            int hlc_count = size() - numSLC;
             double slc_fraction = (double) slc_count /(slc_count + hlc_count);
             return slc_fraction;
         }
@@ -584,11 +2399,11 @@ public class FaintParticleTrigger
 
 
 
-        private boolean inTimeWindow(IUTCTime hitTime, IUTCTime StartT)
+        private boolean inTimeWindow(long hitTime, long StartT)
         {
 
-            return hitTime.compareTo(StartT) >= 0 &&
-                    hitTime.compareTo(StartT.getOffsetUTCTime(time_window*convert_to_ns)) < 0;
+            return hitTime >= StartT &&
+                    hitTime < StartT + time_window*convert_to_ns;
 
         }
 
@@ -602,6 +2417,43 @@ public class FaintParticleTrigger
             return getFirst().getPayloadTimeUTC();
         }
 
+        private void grow()
+        {
+            final int capacity = (mask + 1) * 2;
+            final int newMask = capacity - 1;
+
+            long[] newTimes = new long[capacity];
+            int[] newDoms = new int[capacity];
+            BitSet newSlc = new BitSet(capacity);
+            IHitPayload[] newHits = new IHitPayload[capacity];
+            int[][] newPartners = new int[capacity][];
+            int[][] newPartnerBins = new int[capacity][];
+            int[] newNumPartners = new int[capacity];
+            int[] newPrevOnDom = new int[capacity];
+            for (int s = first; s != next; s++) {
+                int from = s & mask;
+                int to = s & newMask;
+                newTimes[to] = times[from];
+                newDoms[to] = doms[from];
+                newSlc.set(to, slc.get(from));
+                newHits[to] = hits[from];
+                newPartners[to] = partners[from];
+                newPartnerBins[to] = partnerBins[from];
+                newNumPartners[to] = numPartners[from];
+                newPrevOnDom[to] = prevOnDom[from];
+            }
+
+            times = newTimes;
+            doms = newDoms;
+            slc = newSlc;
+            hits = newHits;
+            partners = newPartners;
+            partnerBins = newPartnerBins;
+            numPartners = newNumPartners;
+            prevOnDom = newPrevOnDom;
+            mask = newMask;
+        }
+
         public String toString()
         {
             if (size() == 0) {
@@ -613,5 +2465,326 @@ public class FaintParticleTrigger
         }
     }
 
+    /**
+     * Evaluates copies of the sliding window on a pool of worker threads
+     * (pipeline_threads, or windows deferred by defer_overloaded_windows).
+     * Windows and trigger flushes are queued in the order the sliding
+     * window produced them and are applied on the thread which feeds the
+     * hits, so merging, flushing and formTrigger see exactly the same
+     * sequence as when every window is evaluated in place.
+     *
+     * Without pipeline_threads only deferred windows are evaluated here,
+     * and the windows decided on the hit thread are queued behind them
+     * until they are done.
+     */
+    final class WindowPipeline
+    {
+        /** Windows queued per worker before the hit thread waits */
+        private static final int WINDOWS_PER_THREAD = 4;
+
+        private final ForkJoinPool pool;
+        private final int maxPending;
+
+        /** windows and flushes in the order they must be applied */
+        private final ArrayDeque<PendingWindow> pending =
+            new ArrayDeque<PendingWindow>();
+
+        /**
+         * applied window copies and queue entries, reused so that a steady
+         * stream of windows allocates nothing; only used by the hit thread
+         */
+        private final ArrayDeque<SlidingTimeWindow> idleWindows =
+            new ArrayDeque<SlidingTimeWindow>();
+        private final ArrayDeque<PendingWindow> idleItems =
+            new ArrayDeque<PendingWindow>();
+
+        /**
+         * pair search limits not in use by a worker; there are never more
+         * than one per thread
+         */
+        private final ConcurrentLinkedQueue<DOMNeighbourhood> idleLimits =
+            new ConcurrentLinkedQueue<DOMNeighbourhood>();
+
+        WindowPipeline(int threads)
+        {
+            pool = new ForkJoinPool(threads);
+            if (pipeline_threads > 0) {
+                maxPending = threads * WINDOWS_PER_THREAD;
+            } else {
+                maxPending = MAX_DEFERRED_WINDOWS;
+            }
+        }
+
+        /**
+         * Are there windows or flushes which have not been applied yet?
+         */
+        boolean isBusy()
+        {
+            return !pending.isEmpty();
+        }
+
+        /**
+         * Start evaluating a window.
+         *
+         * @param windowStart window start in UTC ticks
+         * @param window window to evaluate, which is copied
+         * @param geometry current geometry table
+         */
+        void submit(long windowStart, SlidingTimeWindow window,
+                    DOMGeometryTable geometry)
+        {
+            start(newItem(windowStart, windowCopy(window), geometry));
+        }
+
+        /**
+         * Start evaluating a window which ran out of budget on the hit
+         * thread, without a budget.
+         *
+         * @param windowStart window start in UTC ticks
+         * @param window deferred window, which is copied
+         * @param geometry current geometry table
+         */
+        void submitDeferred(long windowStart, SlidingTimeWindow window,
+                            DOMGeometryTable geometry)
+        {
+            SlidingTimeWindow copy = windowCopy(window);
+            copy.deferred = true;
+            start(newItem(windowStart, copy, geometry));
+        }
+
+        /**
+         * Queue a window which was decided on the hit thread behind the
+         * windows being evaluated.
+         *
+         * @param windowStart window start in UTC ticks
+         * @param window decided window, which is copied if it passed
+         * @param pass <tt>true</tt> if the window passed all cuts
+         */
+        void addDecided(long windowStart, SlidingTimeWindow window,
+                        boolean pass)
+        {
+            if (!pass) {
+                addFlush(windowStart);
+            } else {
+                enqueue(newItem(windowStart, windowCopy(window), null));
+            }
+        }
+
+        /**
+         * Queue a flush behind the windows being evaluated.  A flush right
+         * behind another one replaces it, since no window between them
+         * could extend the trigger.
+         *
+         * @param windowStart window start in UTC ticks
+         */
+        void addFlush(long windowStart)
+        {
+            PendingWindow last = pending.peekLast();
+            if (last != null && last.window == null) {
+                last.windowStart = windowStart;
+            } else {
+                pending.addLast(newItem(windowStart, null, null));
+            }
+        }
+
+        /**
+         * Copy a window into an idle window copy, or a new one if none is
+         * idle.
+         */
+        private SlidingTimeWindow windowCopy(SlidingTimeWindow window)
+        {
+            SlidingTimeWindow copy = idleWindows.pollFirst();
+            if (copy == null) {
+                copy = window.copy();
+            } else {
+                copy.load(window);
+            }
+            return copy;
+        }
+
+        private void start(PendingWindow item)
+        {
+            pool.execute(item);
+            item.submitted = true;
+            enqueue(item);
+        }
+
+        /**
+         * Queue an entry, waiting for the oldest ones while there are too
+         * many.
+         */
+        private void enqueue(PendingWindow item)
+        {
+            pending.addLast(item);
+
+            applyFinished();
+            while (pending.size() > maxPending) {
+                applyFirst();
+            }
+        }
+
+        /**
+         * Get an idle queue entry, or a new one if none is idle.
+         */
+        private PendingWindow newItem(long windowStart,
+                                      SlidingTimeWindow window,
+                                      DOMGeometryTable geometry)
+        {
+            PendingWindow item = idleItems.pollFirst();
+            if (item == null) {
+                item = new PendingWindow(this);
+            } else {
+                item.reinitialize();
+            }
+            item.windowStart = windowStart;
+            item.window = window;
+            item.geometry = geometry;
+            item.submitted = false;
+            return item;
+        }
+
+        /**
+         * Apply the leading windows which have been evaluated.
+         */
+        void applyFinished()
+        {
+            while (!pending.isEmpty() && pending.peekFirst().hasResult()) {
+                applyFirst();
+            }
+        }
+
+        /**
+         * Wait for every queued window and apply it.
+         */
+        void drain()
+        {
+            while (!pending.isEmpty()) {
+                applyFirst();
+            }
+        }
+
+        /**
+         * Drop every queued window and stop the worker threads once the
+         * windows they are running are done.
+         */
+        void shutdown()
+        {
+            for (PendingWindow item : pending) {
+                if (item.submitted) {
+                    item.cancel(false);
+                }
+            }
+            pending.clear();
+            idleWindows.clear();
+            idleItems.clear();
+            pool.shutdown();
+        }
+
+        private void applyFirst()
+        {
+            PendingWindow item = pending.removeFirst();
+
+            flushBefore(item.windowStart);
+            SlidingTimeWindow window = item.window;
+            if (window != null && item.passed()) {
+                addToTrigger(item.windowStart, window);
+            }
+
+            //a worker may still hold a window whose wait was interrupted
+            if (item.hasResult()) {
+                if (window != null) {
+                    window.release();
+                    idleWindows.addLast(window);
+                }
+                item.window = null;
+                item.geometry = null;
+                idleItems.addLast(item);
+            }
+        }
+
+        /**
+         * Run the pair cuts on a window copy, lending it a set of pair
+         * search limits for the duration.  Called by the worker threads.
+         */
+        private boolean evaluate(SlidingTimeWindow window,
+                                 DOMGeometryTable geometry)
+        {
+            DOMNeighbourhood limits =
+                updateNeighbourhood(idleLimits.poll(), geometry);
+
+            window.workerLimits = limits;
+            try {
+                //a window deferred on the hit thread is only evaluated
+                //exactly, any other one when it runs out of budget
+                if (!window.deferred && passesPairCuts(window, geometry)) {
+                    return true;
+                }
+                return window.deferred && passesExactly(window, geometry);
+            } finally {
+                window.workerLimits = null;
+                idleLimits.add(limits);
+            }
+        }
+    }
+
+    /**
+     * A window waiting in the pipeline, a window which passed on the hit
+     * thread if it was not submitted, or a flush if there is no window.
+     */
+    private final class PendingWindow
+        extends RecursiveTask<Boolean>
+    {
+        //tasks are never serialized, the pool only requires Serializable
+        private static final long serialVersionUID = 1L;
+
+        /** pipeline evaluating the window, which outlives a reset */
+        private final transient WindowPipeline owner;
+
+        private long windowStart;
+        private transient SlidingTimeWindow window;
+        private transient DOMGeometryTable geometry;
+
+        /** has the window been handed to the pool? */
+        private boolean submitted;
+
+        PendingWindow(WindowPipeline owner)
+        {
+            this.owner = owner;
+        }
+
+        @Override
+        protected Boolean compute()
+        {
+            return owner.evaluate(window, geometry);
+        }
+
+        /**
+         * Is this a flush, or a window whose cuts are finished?
+         */
+        boolean hasResult()
+        {
+            return !submitted || isDone();
+        }
 
+        /**
+         * Wait for the cuts to finish.
+         *
+         * @return <tt>true</tt> if the window passed all cuts
+         */
+        boolean passed()
+        {
+            if (!submitted) {
+                return window != null;
+            }
+            try {
+                return get();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                LOG.error("Interrupted while evaluating " + window, ie);
+            } catch (ExecutionException ee) {
+                LOG.error("Cannot evaluate " + window, ee.getCause());
+            }
+            return false;
+        }
+    }
 }
\ No newline at end of file
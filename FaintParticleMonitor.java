@@ -0,0 +1,262 @@
+package icecube.daq.trigger.algorithm;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Monitoring counters for the FaintParticleTrigger cut cascade.
+ *
+ * For every cut the windows which passed and were rejected are counted,
+ * together with the number of windows evaluated, the candidate hit pairs
+ * handed to the velocity cut, and power-of-two histograms of the window
+ * size and the number of doubles.  Windows whose pair cuts ran out of
+ * their work budget are counted as overloaded, split into those kept for
+ * deferred evaluation and those dropped.  When timing is enabled every
+ * <tt>sampleInterval</tt>-th window is timed stage by stage with
+ * System.nanoTime(); the other windows only pay for the counters.
+ *
+ * All counters are atomic, so they can be updated by pipeline workers and
+ * read by the monitoring thread at the same time.  Updates do not
+ * allocate.
+ */
+final class FaintParticleMonitor
+{
+    /** Hit count cut */
+    static final int HIT_COUNT = 0;
+    /** SLC fraction cut */
+    static final int SLC_FRACTION = 1;
+    /** Double cut */
+    static final int DOUBLES = 2;
+    /** Triple cut */
+    static final int TRIPLES = 3;
+    /** Direction histogram cut (DeepCore version) */
+    static final int DIRECTION = 4;
+
+    /** Monitoring names of the cuts */
+    private static final String[] STAGE_NAMES = {
+        "HitCount", "SlcFraction", "Doubles", "Triples", "Direction",
+    };
+
+    /** Number of power-of-two histogram bins, the last one is open */
+    static final int NUM_HISTOGRAM_BINS = 16;
+
+    private final AtomicLong windows = new AtomicLong();
+    private final AtomicLong timedWindows = new AtomicLong();
+    private final AtomicLong pairsExamined = new AtomicLong();
+    private final AtomicLong longEvents = new AtomicLong();
+    private final AtomicLong triggers = new AtomicLong();
+    private final AtomicLong deferredWindows = new AtomicLong();
+    private final AtomicLong droppedWindows = new AtomicLong();
+    private final AtomicLong deferredTriggers = new AtomicLong();
+
+    private final AtomicLongArray passed =
+        new AtomicLongArray(STAGE_NAMES.length);
+    private final AtomicLongArray rejected =
+        new AtomicLongArray(STAGE_NAMES.length);
+    private final AtomicLongArray stageNanos =
+        new AtomicLongArray(STAGE_NAMES.length);
+
+    private final AtomicLongArray windowSizes =
+        new AtomicLongArray(NUM_HISTOGRAM_BINS);
+    private final AtomicLongArray doubleCounts =
+        new AtomicLongArray(NUM_HISTOGRAM_BINS);
+
+    /** Time every n-th window, 0 to turn timing off */
+    private volatile int sampleInterval;
+
+    /**
+     * Set how often windows are timed.
+     *
+     * @param interval time every <tt>interval</tt>-th window, 0 for never
+     */
+    void setSampleInterval(int interval)
+    {
+        sampleInterval = interval;
+    }
+
+    /**
+     * Count a window entering the cut cascade.  Only called by the thread
+     * which feeds the hits.
+     *
+     * @param size number of hits in the window
+     *
+     * @return <tt>true</tt> if the stages of this window should be timed
+     */
+    boolean startWindow(int size)
+    {
+        final long n = windows.incrementAndGet();
+        windowSizes.incrementAndGet(bin(size));
+
+        final int interval = sampleInterval;
+        if (interval > 0 && n % interval == 0) {
+            timedWindows.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Record the result of a cut.
+     *
+     * @param stage cut index
+     * @param pass <tt>true</tt> if the window passed the cut
+     * @param timed <tt>true</tt> if the window is timed
+     * @param startNanos System.nanoTime() when the stage started, if timed
+     *
+     * @return System.nanoTime() if timed, which is the start of the next
+     *         stage, or 0
+     */
+    long endStage(int stage, boolean pass, boolean timed, long startNanos)
+    {
+        if (pass) {
+            passed.incrementAndGet(stage);
+        } else {
+            rejected.incrementAndGet(stage);
+        }
+
+        if (!timed) {
+            return 0L;
+        }
+        final long now = System.nanoTime();
+        stageNanos.addAndGet(stage, now - startNanos);
+        return now;
+    }
+
+    /**
+     * Record the doubles found for a window.
+     *
+     * @param numPairs candidate pairs handed to the velocity cut
+     * @param numDoubles doubles counted (the count may stop early once the
+     *                   cut is settled)
+     */
+    void addDoubles(int numPairs, int numDoubles)
+    {
+        addPairs(numPairs);
+        doubleCounts.incrementAndGet(bin(numDoubles));
+    }
+
+    /**
+     * Record candidate pairs handed to the velocity cut.
+     *
+     * @param numPairs number of pairs
+     */
+    void addPairs(int numPairs)
+    {
+        if (numPairs > 0) {
+            pairsExamined.addAndGet(numPairs);
+        }
+    }
+
+    void addLongEvent()
+    {
+        longEvents.incrementAndGet();
+    }
+
+    void addTrigger()
+    {
+        triggers.incrementAndGet();
+    }
+
+    /**
+     * Count a window which ran out of its work budget.
+     *
+     * @param deferred <tt>true</tt> if the window was kept for deferred
+     *                 evaluation
+     */
+    void addOverload(boolean deferred)
+    {
+        if (deferred) {
+            deferredWindows.incrementAndGet();
+        } else {
+            droppedWindows.incrementAndGet();
+        }
+    }
+
+    /**
+     * Count a deferred window which passed its exact evaluation.
+     */
+    void addDeferredTrigger()
+    {
+        deferredTriggers.incrementAndGet();
+    }
+
+    /**
+     * Get the histogram bin of a count.  Bin 0 holds 0, bin <tt>b</tt>
+     * holds <tt>[2^(b-1), 2^b)</tt> and the last bin is open.
+     */
+    private static int bin(int value)
+    {
+        final int b = 32 - Integer.numberOfLeadingZeros(Math.max(value, 0));
+        return Math.min(b, NUM_HISTOGRAM_BINS - 1);
+    }
+
+    private static long[] toArray(AtomicLongArray array)
+    {
+        long[] values = new long[array.length()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = array.get(i);
+        }
+        return values;
+    }
+
+    /**
+     * Set all counters to zero.
+     */
+    void clear()
+    {
+        windows.set(0L);
+        timedWindows.set(0L);
+        pairsExamined.set(0L);
+        longEvents.set(0L);
+        triggers.set(0L);
+        deferredWindows.set(0L);
+        droppedWindows.set(0L);
+        deferredTriggers.set(0L);
+        for (int i = 0; i < STAGE_NAMES.length; i++) {
+            passed.set(i, 0L);
+            rejected.set(i, 0L);
+            stageNanos.set(i, 0L);
+        }
+        for (int i = 0; i < NUM_HISTOGRAM_BINS; i++) {
+            windowSizes.set(i, 0L);
+            doubleCounts.set(i, 0L);
+        }
+    }
+
+    /**
+     * Get a snapshot of the counters for I3Live.  Counters are read one at
+     * a time, so a snapshot taken while hits are processed may be off by
+     * the windows evaluated in between.
+     *
+     * @return map of monitoring name to value
+     */
+    Map<String, Object> getMap()
+    {
+        HashMap<String, Object> map = new HashMap<String, Object>();
+
+        map.put("WindowsEvaluated", windows.get());
+        map.put("PairsExamined", pairsExamined.get());
+        map.put("LongEvents", longEvents.get());
+        map.put("Triggers", triggers.get());
+        map.put("OverloadedWindows",
+                deferredWindows.get() + droppedWindows.get());
+        map.put("DeferredWindows", deferredWindows.get());
+        map.put("DroppedWindows", droppedWindows.get());
+        map.put("DeferredTriggers", deferredTriggers.get());
+        for (int i = 0; i < STAGE_NAMES.length; i++) {
+            map.put(STAGE_NAMES[i] + "Passed", passed.get(i));
+            map.put(STAGE_NAMES[i] + "Rejected", rejected.get(i));
+        }
+        map.put("WindowSizeHistogram", toArray(windowSizes));
+        map.put("DoubleCountHistogram", toArray(doubleCounts));
+
+        map.put("TimedWindows", timedWindows.get());
+        for (int i = 0; i < STAGE_NAMES.length; i++) {
+            map.put(STAGE_NAMES[i] + "Nanos", stageNanos.get(i));
+        }
+
+        return map;
+    }
+}
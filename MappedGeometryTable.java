@@ -0,0 +1,462 @@
+package icecube.daq.trigger.algorithm;
+
+import icecube.daq.util.DOMInfo;
+import icecube.daq.util.IDOMRegistry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * DOM geometry for every DOM in a registry, read from a file which is
+ * mapped read-only.
+ *
+ * The file is named after a fingerprint of the registry geometry, so a
+ * changed geometry gets a new file, which is computed once and then shared
+ * through the page cache by every trigger and JVM on the host.  DOMs are
+ * indexed by increasing mainboard ID.  The file holds, after a header and
+ * the mainboard IDs, lower-triangular arrays of the pair values which
+ * DOMGeometryTable computes lazily: the distance in meters and the
+ * zenith and azimuth in degrees in both directions.  All values are
+ * little-endian doubles, so the cuts see the registry values unchanged.
+ *
+ * Every DOM is indexed when the table is opened and the table never
+ * changes afterwards, so it can be shared by threads and triggers.
+ *
+ * Writing a missing file computes every DOM pair, which takes seconds,
+ * so it runs on a background thread.  Until the file is ready the
+ * trigger uses a plain table from standIn(), which gives each DOM the
+ * index it has in the file, so the mapped table can replace it between
+ * two hits.  Open tables are shared through a map which counts their
+ * users and drops a table once the last one has released it.
+ */
+final class MappedGeometryTable
+    extends RegistryGeometryTable
+{
+    /** "FPTG" */
+    private static final int MAGIC = 0x46505447;
+    /** version 1 held floats */
+    private static final int VERSION = 2;
+
+    /** magic, version, number of DOMs and fingerprint */
+    private static final int HEADER_BYTES = 20;
+
+    /** Open tables and files being written, by file name */
+    private static final HashMap<String, Opening> OPEN =
+        new HashMap<String, Opening>();
+
+    private final HashMap<DOMInfo, Integer> indices;
+    private final int numDoms;
+
+    private final DoubleBuffer distance;
+    private final DoubleBuffer zenithUp;
+    private final DoubleBuffer azimuthUp;
+    private final DoubleBuffer zenithDown;
+    private final DoubleBuffer azimuthDown;
+
+    private MappedGeometryTable(IDOMRegistry domRegistry, DOMInfo[] doms,
+                                MappedByteBuffer buf)
+    {
+        super(domRegistry, 0);
+
+        numDoms = doms.length;
+        indices = new HashMap<DOMInfo, Integer>(numDoms * 2);
+        for (int i = 0; i < numDoms; i++) {
+            indices.put(doms[i], i);
+        }
+
+        final int pairs = pairCapacity(numDoms);
+        int pos = HEADER_BYTES + numDoms * 8;
+        distance = doubles(buf, pos, pairs);
+        pos += pairs * 8;
+        zenithUp = doubles(buf, pos, pairs);
+        pos += pairs * 8;
+        azimuthUp = doubles(buf, pos, pairs);
+        pos += pairs * 8;
+        zenithDown = doubles(buf, pos, pairs);
+        pos += pairs * 8;
+        azimuthDown = doubles(buf, pos, pairs);
+    }
+
+    /**
+     * Get the table for a registry.  A file which matches the registry
+     * geometry is mapped right away; otherwise the file is computed and
+     * written on a background thread.  Every call must be paired with a
+     * call to release().
+     *
+     * @param dir cache directory
+     * @param domRegistry DOM registry
+     *
+     * @return geometry table, which fails with an <tt>IOException</tt> if
+     *         the file cannot be read or written
+     */
+    static Future<MappedGeometryTable> open(File dir,
+                                            final IDOMRegistry domRegistry)
+    {
+        final DOMInfo[] doms = sortedDOMs(domRegistry);
+        final long fingerprint = fingerprint(domRegistry, doms);
+        final File file =
+            new File(dir, "fpt-geometry-" + Long.toHexString(fingerprint) +
+                     ".bin");
+
+        synchronized (OPEN) {
+            Opening opening = OPEN.get(file.getPath());
+            if (opening != null && opening.domRegistry == domRegistry) {
+                opening.users++;
+                return opening;
+            }
+
+            MappedByteBuffer buf = null;
+            if (file.exists()) {
+                try {
+                    buf = map(file, doms, fingerprint);
+                } catch (IOException ioe) {
+                    // damaged or left by an older version, so replace it
+                }
+            }
+
+            final MappedByteBuffer mapped = buf;
+            opening = new Opening(file.getPath(), domRegistry,
+                                  new Callable<MappedGeometryTable>() {
+                public MappedGeometryTable call()
+                    throws IOException
+                {
+                    MappedByteBuffer buf = mapped;
+                    if (buf == null) {
+                        write(file, domRegistry, doms, fingerprint);
+                        buf = map(file, doms, fingerprint);
+                    }
+                    return new MappedGeometryTable(domRegistry, doms, buf);
+                }
+            });
+            opening.users++;
+            OPEN.put(file.getPath(), opening);
+
+            if (mapped != null) {
+                opening.run();
+            } else {
+                Thread writer = new Thread(opening, "FPTGeometry-" +
+                                           file.getName());
+                writer.setDaemon(true);
+                writer.start();
+            }
+            return opening;
+        }
+    }
+
+    /**
+     * Release a table returned by open().  The table is dropped from the
+     * shared map once every user has released it and its file is ready.
+     *
+     * @param table table returned by open()
+     */
+    static void release(Future<MappedGeometryTable> table)
+    {
+        final Opening opening = (Opening) table;
+        synchronized (OPEN) {
+            opening.users--;
+            opening.dropIfUnused();
+        }
+    }
+
+    /**
+     * Get a plain table for a registry which indexes every DOM the way the
+     * file does, to stand in for the mapped table while its file is
+     * written.
+     *
+     * @param domRegistry DOM registry
+     *
+     * @return table with every registry DOM indexed
+     */
+    static RegistryGeometryTable standIn(IDOMRegistry domRegistry)
+    {
+        final DOMInfo[] doms = sortedDOMs(domRegistry);
+        RegistryGeometryTable table = new RegistryGeometryTable(domRegistry);
+        table.reserve(doms.length);
+        for (DOMInfo dom : doms) {
+            table.indexOf(dom);
+        }
+        return table;
+    }
+
+    @Override
+    int indexOf(DOMInfo dom)
+    {
+        if (dom == null) {
+            return NO_DOM;
+        }
+
+        Integer idx = indices.get(dom);
+        if (idx == null) {
+            return NO_DOM;
+        }
+        return idx;
+    }
+
+    @Override
+    void indexAll()
+    {
+        // every DOM was indexed when the table was opened
+    }
+
+    @Override
+    int size()
+    {
+        return numDoms;
+    }
+
+    @Override
+    double distance(int a, int b)
+    {
+        return distance.get(pairIndex(a, b));
+    }
+
+    @Override
+    double distanceOnce(int a, int b)
+    {
+        return distance(a, b);
+    }
+
+    @Override
+    double zenith(int from, int to)
+    {
+        final int p = pairIndex(from, to);
+        return (from < to ? zenithUp.get(p) : zenithDown.get(p));
+    }
+
+    @Override
+    double azimuth(int from, int to)
+    {
+        final int p = pairIndex(from, to);
+        return (from < to ? azimuthUp.get(p) : azimuthDown.get(p));
+    }
+
+    /**
+     * Get the registry DOMs by increasing mainboard ID.
+     */
+    private static DOMInfo[] sortedDOMs(IDOMRegistry domRegistry)
+    {
+        ArrayList<DOMInfo> list = new ArrayList<DOMInfo>();
+        for (DOMInfo dom : domRegistry.allDOMs()) {
+            list.add(dom);
+        }
+        Collections.sort(list, new Comparator<DOMInfo>() {
+            public int compare(DOMInfo a, DOMInfo b)
+            {
+                return Long.compare(a.getMainboardId(), b.getMainboardId());
+            }
+        });
+        return list.toArray(new DOMInfo[list.size()]);
+    }
+
+    /**
+     * Hash the mainboard IDs and the position of each DOM relative to the
+     * first one.  The relative positions fix every pairwise distance and
+     * direction, so any change which matters to the trigger changes the
+     * fingerprint.
+     */
+    private static long fingerprint(IDOMRegistry domRegistry, DOMInfo[] doms)
+    {
+        long hash = mix(0x9e3779b97f4a7c15L, doms.length);
+        for (int i = 0; i < doms.length; i++) {
+            hash = mix(hash, doms[i].getMainboardId());
+            if (i > 0) {
+                final double[] dir =
+                    domRegistry.directionBetweenDOMs(doms[0], doms[i]);
+                hash = mix(hash, Double.doubleToLongBits(
+                               domRegistry.distanceBetweenDOMs(doms[0],
+                                                               doms[i])));
+                hash = mix(hash, Double.doubleToLongBits(dir[0]));
+                hash = mix(hash, Double.doubleToLongBits(dir[1]));
+            }
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, long value)
+    {
+        long h = (hash ^ value) * 0xbf58476d1ce4e5b9L;
+        return h ^ (h >>> 31);
+    }
+
+    /**
+     * Compute every DOM pair into a temporary file and move it into place,
+     * so other JVMs never see a partial file.
+     */
+    private static void write(File file, IDOMRegistry domRegistry,
+                              DOMInfo[] doms, long fingerprint)
+        throws IOException
+    {
+        final int num = doms.length;
+        final int pairs = pairCapacity(num);
+        final long len = fileLength(num);
+        if (len > Integer.MAX_VALUE) {
+            throw new IOException("Geometry of " + num +
+                                  " DOMs is too large for " + file);
+        }
+
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+        try {
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            try {
+                raf.setLength(len);
+                MappedByteBuffer buf =
+                    raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                                         len);
+                buf.order(ByteOrder.LITTLE_ENDIAN);
+                buf.putInt(MAGIC);
+                buf.putInt(VERSION);
+                buf.putInt(num);
+                buf.putLong(fingerprint);
+                for (int i = 0; i < num; i++) {
+                    buf.putLong(doms[i].getMainboardId());
+                }
+
+                final int base = HEADER_BYTES + num * 8;
+                for (int b = 1; b < num; b++) {
+                    for (int a = 0; a < b; a++) {
+                        final int off = base + pairIndex(a, b) * 8;
+                        final double[] up =
+                            domRegistry.directionBetweenDOMs(doms[a],
+                                                             doms[b]);
+                        final double[] down =
+                            domRegistry.directionBetweenDOMs(doms[b],
+                                                             doms[a]);
+                        buf.putDouble(off,
+                                      domRegistry.distanceBetweenDOMs(doms[a],
+                                                                      doms[b]));
+                        buf.putDouble(off + pairs * 8,
+                                      Math.toDegrees(up[0]));
+                        buf.putDouble(off + pairs * 16,
+                                      Math.toDegrees(up[1]));
+                        buf.putDouble(off + pairs * 24,
+                                      Math.toDegrees(down[0]));
+                        buf.putDouble(off + pairs * 32,
+                                      Math.toDegrees(down[1]));
+                    }
+                }
+                buf.force();
+            } finally {
+                raf.close();
+            }
+
+            Files.move(tmp.toPath(), file.toPath(),
+                       StandardCopyOption.ATOMIC_MOVE,
+                       StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Map a geometry file, checking that it was written for these DOMs.
+     */
+    private static MappedByteBuffer map(File file, DOMInfo[] doms,
+                                        long fingerprint)
+        throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() != fileLength(doms.length)) {
+                throw new IOException("Bad length " + channel.size() +
+                                      " for " + file);
+            }
+
+            MappedByteBuffer buf =
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION ||
+                buf.getInt(8) != doms.length ||
+                buf.getLong(12) != fingerprint)
+            {
+                throw new IOException("Bad header in " + file);
+            }
+            for (int i = 0; i < doms.length; i++) {
+                if (buf.getLong(HEADER_BYTES + i * 8) !=
+                    doms[i].getMainboardId())
+                {
+                    throw new IOException("DOM #" + i + " does not match " +
+                                          file);
+                }
+            }
+            return buf;
+        } finally {
+            // the mapping stays valid after the channel is closed
+            raf.close();
+        }
+    }
+
+    private static long fileLength(int numDoms)
+    {
+        return HEADER_BYTES + numDoms * 8L + pairCapacity(numDoms) * 40L;
+    }
+
+    private static DoubleBuffer doubles(MappedByteBuffer buf, int pos,
+                                        int len)
+    {
+        ByteBuffer dup = buf.duplicate();
+        dup.position(pos);
+        dup.limit(pos + len * 8);
+        return dup.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+    }
+
+    /**
+     * A table in the shared map, mapped or still being written.  Only
+     * touched while holding the lock on the map.
+     */
+    private static final class Opening
+        extends FutureTask<MappedGeometryTable>
+    {
+        private final String path;
+        private final IDOMRegistry domRegistry;
+
+        /** number of open() calls which have not been released */
+        private int users;
+
+        Opening(String path, IDOMRegistry domRegistry,
+                Callable<MappedGeometryTable> load)
+        {
+            super(load);
+            this.path = path;
+            this.domRegistry = domRegistry;
+        }
+
+        @Override
+        protected void done()
+        {
+            synchronized (OPEN) {
+                dropIfUnused();
+            }
+        }
+
+        /**
+         * Drop this table from the map if nobody uses it.  A file being
+         * written stays in the map, so it is not written twice.
+         */
+        private void dropIfUnused()
+        {
+            if (users == 0 && isDone() && OPEN.get(path) == this) {
+                OPEN.remove(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package icecube.daq.trigger.algorithm;
+
+/**
+ * Applies the FaintParticleTrigger double velocity cut to a block of hit
+ * pairs which share their first hit.
+ *
+ * A pair passes if <tt>distance / |timeDiff| * kmPerSec</tt> lies strictly
+ * between the minimum and maximum velocity.  Every implementation evaluates
+ * exactly this expression in <tt>double</tt> arithmetic, so all of them
+ * select the same pairs.
+ *
+ * The Vector API kernel lives in the optional <tt>vector</tt> source
+ * directory, which is only compiled with <tt>--add-modules
+ * jdk.incubator.vector</tt>.  It is loaded by name, so a build without it
+ * needs no extra module and uses the scalar kernel.
+ */
+abstract class PairVelocityKernel
+{
+    /** Name of the implementation built on the incubating Vector API */
+    private static final String VECTOR_KERNEL =
+        "icecube.daq.trigger.algorithm.VectorPairVelocityKernel";
+
+    private static final PairVelocityKernel INSTANCE = load();
+
+    /**
+     * Get the fastest kernel which works in this JVM.
+     *
+     * @return pair velocity kernel
+     */
+    static PairVelocityKernel getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Find the pairs which pass the velocity cut.
+     *
+     * @param distance distance of each pair in meters
+     * @param timeDiff time difference of each pair in UTC ticks
+     * @param num number of pairs
+     * @param velocityMin minimum velocity in km/s (exclusive)
+     * @param velocityMax maximum velocity in km/s (exclusive)
+     * @param kmPerSec conversion from meters per tick to km/s
+     * @param passed filled with the indices of the passing pairs, in
+     *               increasing order
+     *
+     * @return number of passing pairs
+     */
+    abstract int select(double[] distance, long[] timeDiff, int num,
+                        double velocityMin, double velocityMax,
+                        double kmPerSec, int[] passed);
+
+    /**
+     * Use the Vector API kernel if its module is present and it agrees
+     * with the scalar kernel, otherwise fall back to the scalar kernel.
+     */
+    private static PairVelocityKernel load()
+    {
+        final PairVelocityKernel scalar = new ScalarPairVelocityKernel();
+
+        PairVelocityKernel vector;
+        try {
+            vector = (PairVelocityKernel)
+                Class.forName(VECTOR_KERNEL).getDeclaredConstructor()
+                .newInstance();
+            if (!scalar.agreesWith(vector)) {
+                return scalar;
+            }
+        } catch (Exception ex) {
+            return scalar;
+        } catch (LinkageError err) {
+            // jdk.incubator.vector is not available
+            return scalar;
+        }
+
+        return vector;
+    }
+
+    /**
+     * Run both kernels on a block of edge cases, including pairs at the
+     * velocity limits, a zero time difference and a tail shorter than any
+     * vector length.
+     */
+    private boolean agreesWith(PairVelocityKernel other)
+    {
+        final int num = 67;
+        double[] distance = new double[num];
+        long[] timeDiff = new long[num];
+        for (int i = 0; i < num; i++) {
+            distance[i] = 10.0 + 7.5 * i;
+            timeDiff[i] = (i % 5 == 0 ? 0 : 1000L * (i % 13));
+        }
+        // on the 2e4 and 2e5 km/s limits
+        distance[1] = 20.0;
+        timeDiff[1] = 10000L;
+        distance[2] = 200.0;
+        timeDiff[2] = 10000L;
+
+        int[] mine = new int[num];
+        int[] theirs = new int[num];
+        for (int tail = num - 9; tail <= num; tail++) {
+            final int n =
+                select(distance, timeDiff, tail, 2.0E4, 2.0E5, 1.0E7, mine);
+            if (other.select(distance, timeDiff, tail, 2.0E4, 2.0E5, 1.0E7,
+                             theirs) != n)
+            {
+                return false;
+            }
+            for (int i = 0; i < n; i++) {
+                if (mine[i] != theirs[i]) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * One pair at a time.
+     */
+    static final class ScalarPairVelocityKernel
+        extends PairVelocityKernel
+    {
+        @Override
+        int select(double[] distance, long[] timeDiff, int num,
+                   double velocityMin, double velocityMax, double kmPerSec,
+                   int[] passed)
+        {
+            int numPassed = 0;
+            for (int i = 0; i < num; i++) {
+                double timediff = Math.abs(timeDiff[i]);
+                double vel = distance[i]/timediff*kmPerSec;
+                if (vel>velocityMin && vel < velocityMax) {
+                    passed[numPassed++] = i;
+                }
+            }
+            return numPassed;
+        }
+    }
+}
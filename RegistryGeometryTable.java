@@ -0,0 +1,102 @@
+package icecube.daq.trigger.algorithm;
+
+import icecube.daq.util.DOMInfo;
+import icecube.daq.util.IDOMRegistry;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * DOM geometry table filled from an <tt>IDOMRegistry</tt>.  DOMs are
+ * indexed in the order the trigger first sees them.
+ */
+class RegistryGeometryTable
+    extends DOMGeometryTable
+{
+    private final IDOMRegistry domRegistry;
+
+    private final HashMap<DOMInfo, Integer> indices =
+        new HashMap<DOMInfo, Integer>();
+    private DOMInfo[] doms = new DOMInfo[128];
+
+    RegistryGeometryTable(IDOMRegistry domRegistry)
+    {
+        this.domRegistry = domRegistry;
+    }
+
+    /**
+     * Create a table whose geometry is not kept in the heap arrays.
+     *
+     * @param domRegistry DOM registry
+     * @param initialDoms number of DOM slots in the heap arrays
+     */
+    RegistryGeometryTable(IDOMRegistry domRegistry, int initialDoms)
+    {
+        super(initialDoms);
+        this.domRegistry = domRegistry;
+    }
+
+    /**
+     * Was this table built from <tt>registry</tt>?
+     *
+     * @param registry DOM registry
+     *
+     * @return <tt>true</tt> if the cached geometry belongs to the registry
+     */
+    boolean isFor(IDOMRegistry registry)
+    {
+        return domRegistry == registry;
+    }
+
+    /**
+     * Get the compact index for a DOM, assigning a new one if the DOM
+     * has not been seen before.
+     *
+     * @param dom DOM (may be <tt>null</tt>)
+     *
+     * @return DOM index or <tt>NO_DOM</tt>
+     */
+    int indexOf(DOMInfo dom)
+    {
+        if (dom == null) {
+            return NO_DOM;
+        }
+
+        Integer idx = indices.get(dom);
+        if (idx != null) {
+            return idx;
+        }
+
+        final int newIdx = addDom();
+        if (newIdx == doms.length) {
+            doms = Arrays.copyOf(doms, doms.length * 2);
+        }
+        doms[newIdx] = dom;
+        indices.put(dom, newIdx);
+        return newIdx;
+    }
+
+    /**
+     * Index every DOM in the registry, so the table never grows while other
+     * threads read it.
+     */
+    void indexAll()
+    {
+        reserve(domRegistry.size());
+        for (DOMInfo dom : domRegistry.allDOMs()) {
+            indexOf(dom);
+        }
+    }
+
+    @Override
+    double computeDistance(int a, int b)
+    {
+        return domRegistry.distanceBetweenDOMs(doms[a], doms[b]);
+    }
+
+    @Override
+    double[] computeDirection(int from, int to)
+    {
+        return domRegistry.directionBetweenDOMs(doms[from], doms[to]);
+    }
+}
@@ -0,0 +1,137 @@
+package icecube.daq.trigger.algorithm;
+
+import icecube.daq.payload.IByteBufferCache;
+import icecube.daq.payload.IDOMID;
+import icecube.daq.payload.IHitPayload;
+import icecube.daq.payload.ISourceID;
+import icecube.daq.payload.IUTCTime;
+import icecube.daq.payload.impl.DOMID;
+import icecube.daq.payload.impl.UTCTime;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Hit payload handed to FaintParticleTrigger by the benchmarks.
+ *
+ * Subclasses supply the time, mainboard ID, trigger mode and SLC flag of
+ * the hit as plain method calls.  The benchmark hits never come from or go
+ * to a byte buffer, so the rest of the payload interface is answered with
+ * fixed values.  Two hits are equal only if they are the same object.
+ */
+abstract class BenchmarkHit
+    implements IHitPayload
+{
+    /**
+     * Get the mainboard ID of the hit DOM.
+     */
+    abstract long getMainboardId();
+
+    public abstract long getUTCTime();
+
+    public abstract int getTriggerType();
+
+    public abstract boolean isSLC();
+
+    public IDOMID getDOMID()
+    {
+        return new DOMID(getMainboardId());
+    }
+
+    public IUTCTime getPayloadTimeUTC()
+    {
+        return new UTCTime(getUTCTime());
+    }
+
+    public IUTCTime getHitTimeUTC()
+    {
+        return getPayloadTimeUTC();
+    }
+
+    /**
+     * Benchmark hits are looked up by mainboard ID.
+     */
+    public boolean hasChannelID()
+    {
+        return false;
+    }
+
+    public short getChannelID()
+    {
+        return -1;
+    }
+
+    public ISourceID getSourceID()
+    {
+        return null;
+    }
+
+    public int getTriggerConfigID()
+    {
+        return -1;
+    }
+
+    public int getPayloadInterfaceType()
+    {
+        return -1;
+    }
+
+    public int getPayloadType()
+    {
+        return -1;
+    }
+
+    public int getPayloadLength()
+    {
+        return 0;
+    }
+
+    public int length()
+    {
+        return 0;
+    }
+
+    public ByteBuffer getPayloadBacking()
+    {
+        return null;
+    }
+
+    public void setCache(IByteBufferCache cache)
+    {
+        // nothing is taken from a cache
+    }
+
+    public void loadPayload()
+    {
+        // the fields are always available
+    }
+
+    public void recycle()
+    {
+        // nothing to give back
+    }
+
+    public void dispose()
+    {
+        // nothing to give back
+    }
+
+    public int writePayload(boolean writeLoaded, int destOffset,
+                            ByteBuffer buf)
+    {
+        throw new UnsupportedOperationException("Benchmark hits cannot" +
+                                                " be written");
+    }
+
+    public Object deepCopy()
+    {
+        throw new UnsupportedOperationException("Benchmark hits cannot" +
+                                                " be copied");
+    }
+
+    public String toString()
+    {
+        return getClass().getSimpleName() + "[" + getUTCTime() + " dom " +
+            Long.toHexString(getMainboardId()) +
+            (isSLC() ? " SLC" : " HLC") + "]";
+    }
+}
@@ -0,0 +1,94 @@
+package icecube.daq.trigger.algorithm;
+
+import icecube.daq.trigger.exceptions.IllegalParameterValueException;
+import icecube.daq.trigger.exceptions.UnknownParameterException;
+import icecube.daq.util.IDOMRegistry;
+
+/**
+ * FaintParticleTrigger wired to a synthetic detector so it can run outside
+ * of a trigger component.  The DOM registry is the synthetic one instead
+ * of the trigger manager's, so hits are still looked up and indexed by the
+ * production code, and finished triggers are counted instead of being
+ * handed to the trigger manager.
+ */
+class BenchmarkTrigger
+    extends FaintParticleTrigger
+{
+    /** Velocity of injected tracks in km/s, inside the accepted range */
+    static final double TRACK_VELOCITY = 45000.0;
+
+    private final SyntheticDOMRegistry domRegistry;
+
+    /** Number of triggers formed */
+    long numTriggers;
+    /** Number of hits in all formed triggers */
+    long numTriggerHits;
+
+    /**
+     * Create a trigger.
+     *
+     * @param domRegistry registry of the synthetic detector
+     * @param timeWindow time_window in ns
+     * @param separation time_window_separation in ns
+     * @param useDC use the DeepCore (direction histogram) version
+     * @param incremental track the doubles as hits enter the window
+     *
+     * @throws IllegalParameterValueException if a parameter is bad
+     * @throws UnknownParameterException never
+     */
+    BenchmarkTrigger(SyntheticDOMRegistry domRegistry, long timeWindow,
+                     long separation, boolean useDC, boolean incremental)
+        throws IllegalParameterValueException, UnknownParameterException
+    {
+        this.domRegistry = domRegistry;
+
+        addDefaultParameters(this, timeWindow, separation, useDC);
+        addParameter("incremental_doubles", Boolean.toString(incremental));
+    }
+
+    /**
+     * Configure the cuts used by the benchmarks.
+     *
+     * @param trigger trigger to configure
+     * @param timeWindow time_window in ns
+     * @param separation time_window_separation in ns
+     * @param useDC use the DeepCore (direction histogram) version
+     *
+     * @throws IllegalParameterValueException if a parameter is bad
+     * @throws UnknownParameterException never
+     */
+    static void addDefaultParameters(AbstractTrigger trigger, long timeWindow,
+                                     long separation, boolean useDC)
+        throws IllegalParameterValueException, UnknownParameterException
+    {
+        trigger.addParameter("time_window", Long.toString(timeWindow));
+        trigger.addParameter("time_window_separation",
+                             Long.toString(separation));
+        trigger.addParameter("max_trigger_length", "20000");
+        trigger.addParameter("hit_min", "3");
+        trigger.addParameter("hit_max", "20");
+        // accept doubles between 0.05 c and 0.5 c
+        trigger.addParameter("double_velocity_min", "15000");
+        trigger.addParameter("double_velocity_max", "150000");
+        trigger.addParameter("double_min", "2");
+        trigger.addParameter("use_dc_version", Boolean.toString(useDC));
+        trigger.addParameter("triple_min", "2");
+        trigger.addParameter("histogram_binning", "10");
+        trigger.addParameter("azimuth_histogram_min", "3");
+        trigger.addParameter("zenith_histogram_min", "3");
+        trigger.addParameter("slcfraction_min", "0.0");
+    }
+
+    @Override
+    IDOMRegistry getDOMRegistry()
+    {
+        return domRegistry;
+    }
+
+    @Override
+    void emitTrigger(HitCollection hits)
+    {
+        numTriggers++;
+        numTriggerHits += hits.size();
+    }
+}
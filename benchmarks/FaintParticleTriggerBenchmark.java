@@ -0,0 +1,124 @@
+package icecube.daq.trigger.algorithm;
+
+import icecube.daq.payload.IHitPayload;
+import icecube.daq.trigger.exceptions.TriggerException;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * End-to-end throughput of FaintParticleTrigger.runTrigger().
+ *
+ * Each invocation replays the same {@link #HITS_PER_OP} synthetic hits
+ * through a freshly reset trigger, so the score is in hits per second.
+ * Pass <tt>-p pipelineThreads=N</tt> to measure the pipelined mode and
+ * <tt>-p batchSize=N</tt> to feed the hits in batches.
+ * Run with <tt>-prof gc</tt> to also get the allocation rate per hit.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+public class FaintParticleTriggerBenchmark
+{
+    /** Number of hits replayed per invocation */
+    static final int HITS_PER_OP = 100000;
+
+    /** time_window in ns */
+    @Param({"1000", "2500", "5000"})
+    public long timeWindow;
+
+    /** time_window_separation as a fraction of time_window */
+    @Param({"0.1", "0.5", "1.0"})
+    public double separation;
+
+    @Param({"false", "true"})
+    public boolean useDC;
+
+    @Param({"false", "true"})
+    public boolean incremental;
+
+    /** Dark noise rate of standard DOMs in Hz */
+    @Param({"500"})
+    public double noiseRate;
+
+    /** pipeline_threads, 0 to evaluate windows on the benchmark thread */
+    @Param({"0"})
+    public int pipelineThreads;
+
+    /** Hits per runTrigger() call, 0 to pass the hits one at a time */
+    @Param({"0"})
+    public int batchSize;
+
+    /** Mean rate of injected slow tracks in Hz, 0 for noise only */
+    @Param({"0", "1000"})
+    public double trackRate;
+
+    private IHitPayload[] hits;
+    private BenchmarkTrigger trigger;
+
+    @Setup(Level.Trial)
+    public void setUp()
+        throws Exception
+    {
+        SyntheticDetector detector = new SyntheticDetector();
+
+        // long enough for HITS_PER_OP hits even at the lowest noise rate
+        final double totalRate = detector.size() * noiseRate;
+        final long durationNs = (long) (2.0E9 * HITS_PER_OP / totalRate);
+
+        SyntheticHitStream stream =
+            new SyntheticHitStream(detector, 12345L, durationNs, noiseRate,
+                                   noiseRate * 1.3, 0.3, trackRate,
+                                   BenchmarkTrigger.TRACK_VELOCITY, 60.0);
+        hits = stream.toPayloads(AbstractTrigger.SPE_HIT, HITS_PER_OP);
+
+        final long sep = Math.max(1L, Math.round(timeWindow * separation));
+        trigger = new BenchmarkTrigger(new SyntheticDOMRegistry(detector),
+                                       timeWindow, sep, useDC, incremental);
+        trigger.addParameter("pipeline_threads",
+                             Integer.toString(pipelineThreads));
+    }
+
+    @Setup(Level.Invocation)
+    public void resetTrigger()
+    {
+        trigger.resetAlgorithm();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(HITS_PER_OP)
+    public void runTrigger(Blackhole bh)
+        throws TriggerException
+    {
+        if (batchSize <= 0) {
+            for (int i = 0; i < hits.length; i++) {
+                trigger.runTrigger(hits[i]);
+            }
+        } else {
+            for (int i = 0; i < hits.length; i += batchSize) {
+                trigger.runTrigger(hits, i,
+                                   Math.min(batchSize, hits.length - i));
+            }
+        }
+        // wait for windows still being evaluated by pipeline workers
+        trigger.flush();
+        bh.consume(trigger.numTriggers);
+    }
+}
@@ -0,0 +1,191 @@
+package icecube.daq.trigger.algorithm;
+
+import icecube.daq.payload.IHitPayload;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory-mapped reader for hit files written by {@link HitStreamWriter}.
+ *
+ * The file is mapped read-only in chunks of whole records, so files
+ * larger than 2 GB can be read.  Hits are not copied out of the mapping:
+ * the fields are read from the buffer when asked for, and hit() returns a
+ * payload view which holds only the record index and does the same.
+ */
+final class HitStreamReader
+{
+    /** Records in each mapped chunk (about 1 GB) */
+    private static final int RECORDS_PER_CHUNK =
+        (1 << 30) / HitStreamWriter.RECORD_BYTES;
+
+    private final MappedByteBuffer[] chunks;
+    private final int numHits;
+
+    /**
+     * Map a hit file.
+     *
+     * @param file file to read
+     *
+     * @throws IOException if the file cannot be mapped or is not a hit
+     *                     file
+     */
+    HitStreamReader(File file)
+        throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+
+            final long len = channel.size();
+            final long recordBytes = len - HitStreamWriter.HEADER_BYTES;
+            if (recordBytes < 0 ||
+                recordBytes % HitStreamWriter.RECORD_BYTES != 0)
+            {
+                throw new IOException("Bad hit file length " + len +
+                                      " for " + file);
+            }
+
+            MappedByteBuffer header =
+                channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                            HitStreamWriter.HEADER_BYTES);
+            final int magic = header.getInt(0);
+            final int version = header.getInt(4);
+            if (magic != HitStreamWriter.MAGIC ||
+                version != HitStreamWriter.VERSION)
+            {
+                throw new IOException("Bad hit file header " +
+                                      Integer.toHexString(magic) + "/" +
+                                      version + " for " + file);
+            }
+
+            final long num = recordBytes / HitStreamWriter.RECORD_BYTES;
+            if (num > Integer.MAX_VALUE) {
+                throw new IOException("Too many hits (" + num + ") in " +
+                                      file);
+            }
+            numHits = (int) num;
+
+            chunks = new MappedByteBuffer[(numHits + RECORDS_PER_CHUNK - 1) /
+                                          RECORDS_PER_CHUNK];
+            for (int c = 0; c < chunks.length; c++) {
+                final long first = (long) c * RECORDS_PER_CHUNK;
+                final long records =
+                    Math.min(RECORDS_PER_CHUNK, numHits - first);
+                chunks[c] =
+                    channel.map(FileChannel.MapMode.READ_ONLY,
+                                HitStreamWriter.HEADER_BYTES +
+                                first * HitStreamWriter.RECORD_BYTES,
+                                records * HitStreamWriter.RECORD_BYTES);
+            }
+        } finally {
+            // the mappings stay valid after the channel is closed
+            raf.close();
+        }
+    }
+
+    int size()
+    {
+        return numHits;
+    }
+
+    long time(int i)
+    {
+        return chunk(i).getLong(offset(i));
+    }
+
+    long domId(int i)
+    {
+        return chunk(i).getLong(offset(i) + 8);
+    }
+
+    int triggerMode(int i)
+    {
+        return chunk(i).getInt(offset(i) + 16);
+    }
+
+    boolean isSLC(int i)
+    {
+        return (chunk(i).getInt(offset(i) + 20) &
+                HitStreamWriter.SLC_FLAG) != 0;
+    }
+
+    /**
+     * Get a payload view of a hit.  The view reads its fields from the
+     * mapping, and two views are equal only if they are the same object.
+     *
+     * @param i hit index
+     *
+     * @return hit payload
+     */
+    IHitPayload hit(int i)
+    {
+        return new HitView(i);
+    }
+
+    /**
+     * Fill an array with payload views.
+     *
+     * @param first index of the first hit
+     * @param views array to fill
+     * @param length number of hits
+     */
+    void views(int first, IHitPayload[] views, int length)
+    {
+        for (int i = 0; i < length; i++) {
+            views[i] = hit(first + i);
+        }
+    }
+
+    private MappedByteBuffer chunk(int i)
+    {
+        return chunks[i / RECORDS_PER_CHUNK];
+    }
+
+    private static int offset(int i)
+    {
+        return (i % RECORDS_PER_CHUNK) * HitStreamWriter.RECORD_BYTES;
+    }
+
+    /**
+     * Payload view of one record.
+     */
+    private final class HitView
+        extends BenchmarkHit
+    {
+        private final int index;
+
+        HitView(int index)
+        {
+            this.index = index;
+        }
+
+        long getMainboardId()
+        {
+            return domId(index);
+        }
+
+        public long getUTCTime()
+        {
+            return time(index);
+        }
+
+        public int getTriggerType()
+        {
+            return triggerMode(index);
+        }
+
+        public boolean isSLC()
+        {
+            return HitStreamReader.this.isSLC(index);
+        }
+
+        public String toString()
+        {
+            return "ReplayHit#" + index + super.toString();
+        }
+    }
+}
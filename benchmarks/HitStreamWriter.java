@@ -0,0 +1,118 @@
+package icecube.daq.trigger.algorithm;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes hits in the binary replay format read by {@link HitStreamReader}.
+ *
+ * A file starts with the magic number and the format version, both as
+ * big-endian <tt>int</tt>s, followed by one fixed-size record per hit:
+ * <pre>
+ *   long  UTC time in ticks
+ *   long  DOM (mainboard) ID
+ *   int   trigger mode bits
+ *   int   flags, bit 0 set for SLC hits
+ * </pre>
+ * Hits must be written in time order.
+ */
+final class HitStreamWriter
+    implements Closeable
+{
+    /** "FPTH" */
+    static final int MAGIC = 0x46505448;
+    /** Version 1 files held DOM indices instead of mainboard IDs */
+    static final int VERSION = 2;
+
+    /** Bytes before the first record */
+    static final int HEADER_BYTES = 8;
+    /** Bytes in each record */
+    static final int RECORD_BYTES = 24;
+
+    /** Flag bit of SLC hits */
+    static final int SLC_FLAG = 0x1;
+
+    private final DataOutputStream out;
+    private long lastTime = Long.MIN_VALUE;
+    private long numHits;
+
+    /**
+     * Create a new file, replacing any old one.
+     *
+     * @param file file to write
+     *
+     * @throws IOException if the file cannot be created
+     */
+    HitStreamWriter(File file)
+        throws IOException
+    {
+        out = new DataOutputStream(new BufferedOutputStream(
+                                       new FileOutputStream(file), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    /**
+     * Write a hit.
+     *
+     * @param time UTC time in ticks
+     * @param domId DOM ID
+     * @param isSLC SLC flag
+     * @param triggerMode trigger mode bits
+     *
+     * @throws IOException if the hit is out of order or cannot be written
+     */
+    void write(long time, long domId, boolean isSLC, int triggerMode)
+        throws IOException
+    {
+        if (time < lastTime) {
+            throw new IOException("Hit at " + time +
+                                  " comes before previous hit at " +
+                                  lastTime);
+        }
+        lastTime = time;
+
+        out.writeLong(time);
+        out.writeLong(domId);
+        out.writeInt(triggerMode);
+        out.writeInt(isSLC ? SLC_FLAG : 0);
+        numHits++;
+    }
+
+    /**
+     * Write every hit of a synthetic stream with the mainboard IDs given
+     * to its DOMs by SyntheticDOMRegistry.
+     *
+     * @param stream synthetic hits
+     * @param triggerMode trigger mode bits of every hit
+     *
+     * @throws IOException if a hit cannot be written
+     */
+    void write(SyntheticHitStream stream, int triggerMode)
+        throws IOException
+    {
+        for (int i = 0; i < stream.size(); i++) {
+            write(stream.time(i),
+                  SyntheticDOMRegistry.mainboardId(stream.dom(i)),
+                  stream.isSLC(i), triggerMode);
+        }
+    }
+
+    /**
+     * Number of hits written so far.
+     */
+    long size()
+    {
+        return numHits;
+    }
+
+    public void close()
+        throws IOException
+    {
+        out.close();
+    }
+}
@@ -0,0 +1,115 @@
+package icecube.daq.trigger.algorithm;
+
+import icecube.daq.payload.IHitPayload;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the individual FaintParticleTrigger stages on one filled window.
+ *
+ * The window holds about <tt>hitsPerWindow</tt> noise hits spread over one
+ * <tt>time_window</tt>, optionally with a slow track crossing it.  Each
+ * benchmark runs a single stage on that window, so the scores are in
+ * windows per microsecond.  The triple count is not allowed to stop early,
+ * so it measures the full intersection.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class SlidingTimeWindowBenchmark
+{
+    /** time_window in ns */
+    @Param({"1000", "2500", "5000"})
+    public long timeWindow;
+
+    /** Mean number of noise hits in the window */
+    @Param({"4", "16", "64"})
+    public int hitsPerWindow;
+
+    @Param({"false", "true"})
+    public boolean withTrack;
+
+    private DOMGeometryTable geometry;
+    private FaintParticleTrigger.SlidingTimeWindow window;
+
+    @Setup(Level.Trial)
+    public void setUp()
+        throws Exception
+    {
+        SyntheticDetector detector = new SyntheticDetector();
+
+        final double noiseRate =
+            hitsPerWindow / (detector.size() * timeWindow * 1.0E-9);
+        final double trackRate = (withTrack ? 1.0E9 / timeWindow : 0.0);
+
+        SyntheticHitStream stream =
+            new SyntheticHitStream(detector, 4321L, timeWindow, noiseRate,
+                                   noiseRate, 0.3, trackRate,
+                                   BenchmarkTrigger.TRACK_VELOCITY, 60.0);
+        IHitPayload[] hits =
+            stream.toPayloads(AbstractTrigger.SPE_HIT, stream.size());
+
+        BenchmarkTrigger trigger =
+            new BenchmarkTrigger(new SyntheticDOMRegistry(detector),
+                                 timeWindow, timeWindow, false, false);
+        trigger.triple_min = Integer.MAX_VALUE;
+
+        // DOMs are indexed through the registry as in runTrigger()
+        geometry = trigger.getGeometry();
+        window = trigger.getSlidingTimeWindow();
+        for (int i = 0; i < hits.length; i++) {
+            window.add(hits[i], trigger.domIndex(hits[i]), geometry);
+        }
+
+        // fill the double rows used by the triple and direction stages,
+        // and warm the geometry cache
+        window.DoubleThreshold(geometry, false);
+        window.DirectionThreshold(geometry);
+    }
+
+    @Benchmark
+    public boolean hitThreshold()
+    {
+        return window.HitThreshold();
+    }
+
+    @Benchmark
+    public double slcFraction()
+    {
+        return window.SlcFractionThreshold();
+    }
+
+    @Benchmark
+    public int doubles()
+    {
+        return window.DoubleThreshold(geometry, false);
+    }
+
+    @Benchmark
+    public int triples()
+    {
+        return window.TripleThreshold();
+    }
+
+    @Benchmark
+    public void directions()
+    {
+        window.DirectionThreshold(geometry);
+    }
+}
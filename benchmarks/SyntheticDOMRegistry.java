@@ -0,0 +1,196 @@
+package icecube.daq.trigger.algorithm;
+
+import icecube.daq.util.DOMInfo;
+import icecube.daq.util.IDOMRegistry;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Stub DOM registry for the synthetic detector, so the benchmarks reach
+ * the DOM geometry through the same registry calls as the trigger does in
+ * a trigger component.
+ *
+ * Each DOM gets a made-up mainboard ID, string and position.  DOMs are
+ * looked up by mainboard ID in a hash map, like the real registry does.
+ * Distances and directions are computed from the detector coordinates
+ * with the registry conventions: zenith from the z axis and azimuth
+ * counter-clockwise from the x axis in <tt>[0, 2 pi)</tt>.
+ */
+final class SyntheticDOMRegistry
+    implements IDOMRegistry
+{
+    /** Mainboard ID of DOM index 0 */
+    static final long FIRST_MAINBOARD_ID = 0x100000000000L;
+
+    private final SyntheticDetector detector;
+    private final DOMInfo[] doms;
+    private final HashMap<Long, DOMInfo> byMainboardId;
+
+    SyntheticDOMRegistry(SyntheticDetector detector)
+    {
+        this.detector = detector;
+
+        doms = new DOMInfo[detector.size()];
+        byMainboardId = new HashMap<Long, DOMInfo>(doms.length * 2);
+        for (int dom = 0; dom < doms.length; dom++) {
+            final int string = detector.string(dom);
+            doms[dom] = new DOMInfo(mainboardId(dom), string,
+                                    detector.position(dom), string);
+            byMainboardId.put(doms[dom].getMainboardId(), doms[dom]);
+        }
+    }
+
+    /**
+     * Get the mainboard ID reported by the hits of a DOM.
+     *
+     * @param dom DOM index in the synthetic detector
+     *
+     * @return mainboard ID
+     */
+    static long mainboardId(int dom)
+    {
+        return FIRST_MAINBOARD_ID + dom;
+    }
+
+    private static int index(DOMInfo dom)
+    {
+        return (int) (dom.getMainboardId() - FIRST_MAINBOARD_ID);
+    }
+
+    private static int index(long mbid)
+    {
+        return (int) (mbid - FIRST_MAINBOARD_ID);
+    }
+
+    public Iterable<DOMInfo> allDOMs()
+    {
+        return Collections.unmodifiableList(Arrays.asList(doms));
+    }
+
+    public int size()
+    {
+        return doms.length;
+    }
+
+    public Set<Long> keys()
+    {
+        return Collections.unmodifiableSet(byMainboardId.keySet());
+    }
+
+    public DOMInfo getDom(long mbid)
+    {
+        return byMainboardId.get(mbid);
+    }
+
+    public DOMInfo getDom(int major, int minor)
+    {
+        for (DOMInfo dom : doms) {
+            if (dom.getStringMajor() == major &&
+                dom.getStringMinor() == minor)
+            {
+                return dom;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Channel IDs are the DOM indices.
+     */
+    public DOMInfo getDom(short channelId)
+    {
+        if (channelId < 0 || channelId >= doms.length) {
+            return null;
+        }
+        return doms[channelId];
+    }
+
+    public short getChannelId(long mbid)
+    {
+        final DOMInfo dom = getDom(mbid);
+        return (dom == null ? -1 : (short) index(dom));
+    }
+
+    public Set<DOMInfo> getDomsOnHub(int hubId)
+    {
+        HashSet<DOMInfo> set = new HashSet<DOMInfo>();
+        for (DOMInfo dom : doms) {
+            if (dom.getHubId() == hubId) {
+                set.add(dom);
+            }
+        }
+        return set;
+    }
+
+    public Set<DOMInfo> getDomsOnString(int string)
+    {
+        HashSet<DOMInfo> set = new HashSet<DOMInfo>();
+        for (DOMInfo dom : doms) {
+            if (dom.getStringMajor() == string) {
+                set.add(dom);
+            }
+        }
+        return set;
+    }
+
+    public String getName(long mbid)
+    {
+        final DOMInfo dom = getDom(mbid);
+        return (dom == null ? null : "Synthetic-" + index(dom));
+    }
+
+    public String getProductionId(long mbid)
+    {
+        return getName(mbid);
+    }
+
+    public int getStringMajor(long mbid)
+    {
+        final DOMInfo dom = getDom(mbid);
+        return (dom == null ? 0 : dom.getStringMajor());
+    }
+
+    public int getStringMinor(long mbid)
+    {
+        final DOMInfo dom = getDom(mbid);
+        return (dom == null ? 0 : dom.getStringMinor());
+    }
+
+    public double distanceBetweenDOMs(long mbid0, long mbid1)
+    {
+        return distance(index(mbid0), index(mbid1));
+    }
+
+    public double distanceBetweenDOMs(DOMInfo dom0, DOMInfo dom1)
+    {
+        return distance(index(dom0), index(dom1));
+    }
+
+    public double[] directionBetweenDOMs(DOMInfo from, DOMInfo to)
+    {
+        final int a = index(from);
+        final int b = index(to);
+        final double dx = detector.x(b) - detector.x(a);
+        final double dy = detector.y(b) - detector.y(a);
+        final double dz = detector.z(b) - detector.z(a);
+        final double dist = Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+        double azimuth = Math.atan2(dy, dx);
+        if (azimuth < 0.0) {
+            azimuth += 2.0 * Math.PI;
+        }
+        return new double[] { Math.acos(dz / dist), azimuth };
+    }
+
+    private double distance(int a, int b)
+    {
+        final double dx = detector.x(b) - detector.x(a);
+        final double dy = detector.y(b) - detector.y(a);
+        final double dz = detector.z(b) - detector.z(a);
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+}
@@ -0,0 +1,139 @@
+package icecube.daq.trigger.algorithm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Stand-in for the IceCube DOM registry used by the FaintParticleTrigger
+ * benchmarks.
+ *
+ * The in-ice array is 78 strings on a 125 m triangular grid with 60 DOMs
+ * each at 17 m spacing.  DeepCore adds 8 strings close to the centre
+ * string, each with 10 veto DOMs at 10 m spacing above the dust layer and
+ * 50 DOMs at 7 m spacing in the clear ice below it.  Coordinates are in
+ * meters with the origin at the detector centre.  DOM indices run string
+ * by string, from the top of each string down; SyntheticDOMRegistry
+ * serves the detector to the trigger.
+ */
+final class SyntheticDetector
+{
+    static final int IN_ICE_STRINGS = 78;
+    static final int DEEPCORE_STRINGS = 8;
+    static final int DOMS_PER_STRING = 60;
+
+    private static final double STRING_SPACING = 125.0;
+    private static final double IN_ICE_DOM_SPACING = 17.0;
+    private static final double DEEPCORE_RADIUS = 72.0;
+
+    private final double[] x;
+    private final double[] y;
+    private final double[] z;
+    private final boolean[] deepCore;
+
+    SyntheticDetector()
+    {
+        final int numDoms = (IN_ICE_STRINGS + DEEPCORE_STRINGS) *
+            DOMS_PER_STRING;
+
+        x = new double[numDoms];
+        y = new double[numDoms];
+        z = new double[numDoms];
+        deepCore = new boolean[numDoms];
+
+        int dom = 0;
+        for (double[] pos : inIceStrings()) {
+            for (int i = 0; i < DOMS_PER_STRING; i++) {
+                x[dom] = pos[0];
+                y[dom] = pos[1];
+                z[dom] = 500.0 - i * IN_ICE_DOM_SPACING;
+                dom++;
+            }
+        }
+
+        for (int s = 0; s < DEEPCORE_STRINGS; s++) {
+            final double phi = 2.0 * Math.PI * s / DEEPCORE_STRINGS;
+            final double posX = DEEPCORE_RADIUS * Math.cos(phi);
+            final double posY = DEEPCORE_RADIUS * Math.sin(phi);
+            for (int i = 0; i < DOMS_PER_STRING; i++) {
+                x[dom] = posX;
+                y[dom] = posY;
+                if (i < 10) {
+                    z[dom] = 190.0 - i * 10.0;
+                } else {
+                    z[dom] = -155.0 - (i - 10) * 7.0;
+                }
+                deepCore[dom] = true;
+                dom++;
+            }
+        }
+    }
+
+    /**
+     * The 78 grid points closest to the centre of a triangular lattice.
+     */
+    private static ArrayList<double[]> inIceStrings()
+    {
+        ArrayList<double[]> points = new ArrayList<double[]>();
+        for (int i = -8; i <= 8; i++) {
+            for (int j = -8; j <= 8; j++) {
+                points.add(new double[] {
+                        STRING_SPACING * (i + 0.5 * j),
+                        STRING_SPACING * (Math.sqrt(3.0) / 2.0 * j),
+                    });
+            }
+        }
+
+        Collections.sort(points, new Comparator<double[]>() {
+                public int compare(double[] a, double[] b)
+                {
+                    return Double.compare(a[0] * a[0] + a[1] * a[1],
+                                          b[0] * b[0] + b[1] * b[1]);
+                }
+            });
+
+        return new ArrayList<double[]>(points.subList(0, IN_ICE_STRINGS));
+    }
+
+    int size()
+    {
+        return x.length;
+    }
+
+    double x(int dom)
+    {
+        return x[dom];
+    }
+
+    double y(int dom)
+    {
+        return y[dom];
+    }
+
+    double z(int dom)
+    {
+        return z[dom];
+    }
+
+    boolean isDeepCore(int dom)
+    {
+        return deepCore[dom];
+    }
+
+    /**
+     * Get the string number of a DOM, starting at 1 with the in-ice
+     * strings.
+     */
+    int string(int dom)
+    {
+        return dom / DOMS_PER_STRING + 1;
+    }
+
+    /**
+     * Get the position of a DOM on its string, starting at 1 at the top.
+     */
+    int position(int dom)
+    {
+        return dom % DOMS_PER_STRING + 1;
+    }
+}
@@ -0,0 +1,275 @@
+package icecube.daq.trigger.algorithm;
+
+import icecube.daq.payload.IHitPayload;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Time-ordered synthetic hit stream for the FaintParticleTrigger
+ * benchmarks.
+ *
+ * Every DOM produces Poisson dark noise at its own rate.  Optionally, slow
+ * straight tracks are injected at a fixed mean rate; each track hits the
+ * DOMs within <tt>trackRadius</tt> of its path at the time the particle
+ * passes them.  Hit times are in UTC ticks (0.1 ns).
+ */
+final class SyntheticHitStream
+{
+    /** UTC ticks per second */
+    private static final double TICKS_PER_SEC = 1.0E10;
+
+    private final long[] times;
+    private final int[] doms;
+    private final boolean[] slc;
+
+    /**
+     * Generate a stream.
+     *
+     * @param detector detector geometry
+     * @param seed random seed
+     * @param durationNs stream length in nanoseconds
+     * @param inIceRateHz dark noise rate of standard DOMs
+     * @param deepCoreRateHz dark noise rate of DeepCore DOMs
+     * @param slcFraction fraction of noise hits flagged SLC
+     * @param trackRateHz mean rate of injected slow tracks (0 for none)
+     * @param trackVelocity track velocity in km/s
+     * @param trackRadius largest distance in meters from track to hit DOM
+     */
+    SyntheticHitStream(SyntheticDetector detector, long seed,
+                       long durationNs, double inIceRateHz,
+                       double deepCoreRateHz, double slcFraction,
+                       double trackRateHz, double trackVelocity,
+                       double trackRadius)
+    {
+        final Random rand = new Random(seed);
+        final long durationTicks = durationNs * 10L;
+
+        // cumulative noise rate, used to pick the DOM of each noise hit
+        final double[] cumRate = new double[detector.size()];
+        double totalRate = 0.0;
+        for (int dom = 0; dom < detector.size(); dom++) {
+            totalRate += (detector.isDeepCore(dom) ? deepCoreRateHz :
+                          inIceRateHz);
+            cumRate[dom] = totalRate;
+        }
+
+        Builder builder = new Builder();
+
+        double t = 0.0;
+        while (totalRate > 0.0) {
+            t += exponential(rand) / totalRate * TICKS_PER_SEC;
+            if (t >= durationTicks) {
+                break;
+            }
+
+            int dom = Arrays.binarySearch(cumRate,
+                                          rand.nextDouble() * totalRate);
+            if (dom < 0) {
+                dom = -dom - 1;
+            }
+            builder.add((long) t, dom, rand.nextDouble() < slcFraction);
+        }
+
+        t = 0.0;
+        while (trackRateHz > 0.0) {
+            t += exponential(rand) / trackRateHz * TICKS_PER_SEC;
+            if (t >= durationTicks) {
+                break;
+            }
+
+            addTrack(builder, detector, rand, (long) t, trackVelocity,
+                     trackRadius);
+        }
+
+        final int num = builder.size;
+        final long[] keys = new long[num];
+        for (int i = 0; i < num; i++) {
+            // hits in the stream fit easily in 2^24 entries
+            keys[i] = (builder.times[i] << 24) | i;
+        }
+        Arrays.sort(keys);
+
+        times = new long[num];
+        doms = new int[num];
+        slc = new boolean[num];
+        for (int i = 0; i < num; i++) {
+            final int idx = (int) (keys[i] & 0xffffff);
+            times[i] = builder.times[idx];
+            doms[i] = builder.doms[idx];
+            slc[i] = builder.slc[idx];
+        }
+    }
+
+    /**
+     * Add the hits of one straight track through the detector.
+     */
+    private static void addTrack(Builder builder, SyntheticDetector detector,
+                                 Random rand, long closestTime,
+                                 double velocity, double radius)
+    {
+        // isotropic direction
+        final double cosZen = 2.0 * rand.nextDouble() - 1.0;
+        final double sinZen = Math.sqrt(1.0 - cosZen * cosZen);
+        final double phi = 2.0 * Math.PI * rand.nextDouble();
+        final double dirX = sinZen * Math.cos(phi);
+        final double dirY = sinZen * Math.sin(phi);
+        final double dirZ = cosZen;
+
+        // point of closest approach to the centre, within 500 m
+        double px = 1000.0 * rand.nextDouble() - 500.0;
+        double py = 1000.0 * rand.nextDouble() - 500.0;
+        double pz = 1000.0 * rand.nextDouble() - 500.0;
+        final double along = px * dirX + py * dirY + pz * dirZ;
+        px -= along * dirX;
+        py -= along * dirY;
+        pz -= along * dirZ;
+
+        // km/s to meters per tick
+        final double metersPerTick = velocity * 1.0E3 / TICKS_PER_SEC;
+
+        for (int dom = 0; dom < detector.size(); dom++) {
+            final double dx = detector.x(dom) - px;
+            final double dy = detector.y(dom) - py;
+            final double dz = detector.z(dom) - pz;
+            final double proj = dx * dirX + dy * dirY + dz * dirZ;
+            final double perpSq = dx * dx + dy * dy + dz * dz - proj * proj;
+            if (perpSq <= radius * radius) {
+                final long time = closestTime + (long) (proj / metersPerTick);
+                if (time >= 0) {
+                    builder.add(time, dom, rand.nextBoolean());
+                }
+            }
+        }
+    }
+
+    private static double exponential(Random rand)
+    {
+        return -Math.log(1.0 - rand.nextDouble());
+    }
+
+    int size()
+    {
+        return times.length;
+    }
+
+    long time(int i)
+    {
+        return times[i];
+    }
+
+    int dom(int i)
+    {
+        return doms[i];
+    }
+
+    boolean isSLC(int i)
+    {
+        return slc[i];
+    }
+
+    /**
+     * Build payloads for the first hits in the stream.
+     *
+     * @param triggerMode trigger mode bits reported by every hit
+     * @param num number of hits
+     *
+     * @return hit payloads
+     */
+    IHitPayload[] toPayloads(int triggerMode, int num)
+    {
+        if (num > times.length) {
+            throw new IllegalArgumentException("Asked for " + num +
+                                               " hits, stream only has " +
+                                               times.length);
+        }
+
+        IHitPayload[] hits = new IHitPayload[num];
+        for (int i = 0; i < num; i++) {
+            hits[i] = newHit(times[i], doms[i], slc[i], triggerMode);
+        }
+        return hits;
+    }
+
+    /**
+     * Create a hit payload.
+     *
+     * @param time UTC time
+     * @param dom DOM index, reported as its SyntheticDOMRegistry mainboard
+     *            ID
+     * @param isSLC SLC flag
+     * @param triggerMode trigger mode bits
+     *
+     * @return hit payload
+     */
+    static IHitPayload newHit(long time, int dom, boolean isSLC,
+                              int triggerMode)
+    {
+        return new SyntheticHit(time, SyntheticDOMRegistry.mainboardId(dom),
+                                isSLC, triggerMode);
+    }
+
+    /**
+     * Hit payload holding its own fields.
+     */
+    private static final class SyntheticHit
+        extends BenchmarkHit
+    {
+        private final long time;
+        private final long mbid;
+        private final boolean isSLC;
+        private final int triggerMode;
+
+        SyntheticHit(long time, long mbid, boolean isSLC, int triggerMode)
+        {
+            this.time = time;
+            this.mbid = mbid;
+            this.isSLC = isSLC;
+            this.triggerMode = triggerMode;
+        }
+
+        long getMainboardId()
+        {
+            return mbid;
+        }
+
+        public long getUTCTime()
+        {
+            return time;
+        }
+
+        public int getTriggerType()
+        {
+            return triggerMode;
+        }
+
+        public boolean isSLC()
+        {
+            return isSLC;
+        }
+    }
+
+    /**
+     * Growable unsorted hit list.
+     */
+    private static final class Builder
+    {
+        long[] times = new long[1024];
+        int[] doms = new int[1024];
+        boolean[] slc = new boolean[1024];
+        int size;
+
+        void add(long time, int dom, boolean isSLC)
+        {
+            if (size == times.length) {
+                times = Arrays.copyOf(times, size * 2);
+                doms = Arrays.copyOf(doms, size * 2);
+                slc = Arrays.copyOf(slc, size * 2);
+            }
+            times[size] = time;
+            doms[size] = dom;
+            slc[size] = isSLC;
+            size++;
+        }
+    }
+}
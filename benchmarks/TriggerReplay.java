@@ -0,0 +1,562 @@
+package icecube.daq.trigger.algorithm;
+
+import icecube.daq.payload.IHitPayload;
+import icecube.daq.trigger.exceptions.IllegalParameterValueException;
+import icecube.daq.trigger.exceptions.TriggerException;
+import icecube.daq.trigger.exceptions.UnknownParameterException;
+import icecube.daq.util.IDOMRegistry;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Replays a binary hit file through FaintParticleTrigger as fast as
+ * possible.
+ *
+ * <pre>
+ * TriggerReplay write FILE DURATION_NS [SEED [TRACK_RATE_HZ]]
+ * TriggerReplay run FILE [-batch N] [name=value ...]
+ * TriggerReplay check FILE [-batch N] [name=value ...]
+ * TriggerReplay sweep FILE CONFIG_FILE [-batch N] [-check]
+ * </pre>
+ *
+ * <tt>write</tt> stores a synthetic hit stream.  <tt>run</tt> feeds every
+ * hit to runTrigger(), one at a time or in batches of N, and reports the
+ * triggers and the hit rate.  <tt>check</tt> also makes a reference run
+ * with the same cuts through BaselineFaintParticleTrigger, the trigger as
+ * it was before the performance work, fed one hit at a time, and fails if
+ * the triggers differ.  Parameters the baseline does not know are left
+ * out of the reference run.  <tt>sweep</tt> reads one parameter set per
+ * line of CONFIG_FILE and evaluates all sets sharing a time window in a
+ * single pass; with <tt>-check</tt> each set is also replayed through the
+ * baseline as a reference.
+ *
+ * Trigger parameters are given as <tt>name=value</tt> and override the
+ * BenchmarkTrigger defaults.  DOM IDs are looked up in the registry of
+ * the synthetic detector, so they must be its mainboard IDs.
+ */
+public final class TriggerReplay
+{
+    private TriggerReplay()
+    {
+    }
+
+    /**
+     * Triggers formed during a replay.  Each trigger is kept as its hit
+     * count, its first and last hit time and a hash of its hits.
+     */
+    static final class TriggerLog
+    {
+        private long[] values = new long[4 * 1024];
+        private int numTriggers;
+
+        void add(HitCollection hits)
+        {
+            if ((numTriggers + 1) * 4 > values.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+
+            long hash = 1;
+            for (Object obj : hits.list()) {
+                final IHitPayload hit = (IHitPayload) obj;
+                hash = 31 * hash + hit.getUTCTime();
+                hash = 31 * hash + hit.getDOMID().longValue();
+            }
+
+            final int idx = numTriggers * 4;
+            values[idx] = hits.size();
+            values[idx + 1] = hits.getFirst().getUTCTime();
+            values[idx + 2] = hits.getLast().getUTCTime();
+            values[idx + 3] = hash;
+            numTriggers++;
+        }
+
+        int size()
+        {
+            return numTriggers;
+        }
+
+        long numHits()
+        {
+            long total = 0;
+            for (int t = 0; t < numTriggers; t++) {
+                total += values[t * 4];
+            }
+            return total;
+        }
+
+        /**
+         * Find the first trigger which differs from another log.
+         *
+         * @return trigger index, or -1 if the logs are the same
+         */
+        int firstDifference(TriggerLog log)
+        {
+            final int num = Math.min(numTriggers, log.numTriggers);
+            for (int t = 0; t < num; t++) {
+                for (int v = t * 4; v < t * 4 + 4; v++) {
+                    if (values[v] != log.values[v]) {
+                        return t;
+                    }
+                }
+            }
+            return (numTriggers == log.numTriggers ? -1 : num);
+        }
+
+        String describe(int t)
+        {
+            if (t >= numTriggers) {
+                return "none";
+            }
+            final int idx = t * 4;
+            return values[idx] + " hits [" + values[idx + 1] + "-" +
+                values[idx + 2] + "] hash " + Long.toHexString(values[idx + 3]);
+        }
+    }
+
+    /**
+     * Benchmark trigger which logs every trigger it forms.
+     */
+    static final class ReplayTrigger
+        extends BenchmarkTrigger
+    {
+        final TriggerLog log = new TriggerLog();
+
+        ReplayTrigger(SyntheticDOMRegistry domRegistry)
+            throws IllegalParameterValueException, UnknownParameterException
+        {
+            super(domRegistry, 2500L, 250L, false, false);
+        }
+
+        @Override
+        void emitTrigger(HitCollection hits)
+        {
+            super.emitTrigger(hits);
+            log.add(hits);
+        }
+    }
+
+    /**
+     * Baseline trigger which logs every trigger it forms.
+     */
+    static final class BaselineTrigger
+        extends BaselineFaintParticleTrigger
+    {
+        final TriggerLog log = new TriggerLog();
+
+        private final SyntheticDOMRegistry domRegistry;
+
+        BaselineTrigger(SyntheticDOMRegistry domRegistry)
+            throws IllegalParameterValueException, UnknownParameterException
+        {
+            this.domRegistry = domRegistry;
+            BenchmarkTrigger.addDefaultParameters(this, 2500L, 250L, false);
+        }
+
+        @Override
+        IDOMRegistry getDOMRegistry()
+        {
+            return domRegistry;
+        }
+
+        @Override
+        void emitTrigger(HitCollection hits)
+        {
+            log.add(hits);
+        }
+    }
+
+    /**
+     * Result of one replay.
+     */
+    static final class Result
+    {
+        final TriggerLog log;
+        final int numHits;
+        final long nanos;
+
+        Result(TriggerLog log, int numHits, long nanos)
+        {
+            this.log = log;
+            this.numHits = numHits;
+            this.nanos = nanos;
+        }
+
+        double hitsPerSecond()
+        {
+            return numHits * 1.0E9 / Math.max(nanos, 1L);
+        }
+
+        public String toString()
+        {
+            return log.size() + " triggers with " + log.numHits() +
+                " hits from " + numHits + " hits in " + (nanos / 1000000L) +
+                " ms (" + Math.round(hitsPerSecond()) + " hits/s)";
+        }
+    }
+
+    /**
+     * Create a trigger which logs its triggers.
+     *
+     * @param domRegistry registry of the detector which recorded the hits
+     * @param params trigger parameters as <tt>name=value</tt>
+     *
+     * @return configured trigger
+     *
+     * @throws Exception if a parameter is bad
+     */
+    static ReplayTrigger newTrigger(SyntheticDOMRegistry domRegistry,
+                                    List<String> params)
+        throws Exception
+    {
+        ReplayTrigger trigger = new ReplayTrigger(domRegistry);
+        for (String param : params) {
+            final int eq = param.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("Bad parameter \"" +
+                                                   param + "\"");
+            }
+            trigger.addParameter(param.substring(0, eq),
+                                 param.substring(eq + 1));
+        }
+        return trigger;
+    }
+
+    /**
+     * Feed every hit in a file to each trigger and flush them.
+     *
+     * @param triggers triggers to feed
+     * @param reader mapped hit file
+     * @param batchSize hits per runTrigger() call, 0 for one at a time
+     *
+     * @return elapsed time in nanoseconds
+     *
+     * @throws TriggerException if a trigger rejects a hit
+     */
+    static long feed(List<? extends FaintParticleTrigger> triggers,
+                     HitStreamReader reader, int batchSize)
+        throws TriggerException
+    {
+        final int numHits = reader.size();
+        final long start = System.nanoTime();
+        if (batchSize <= 0) {
+            for (int i = 0; i < numHits; i++) {
+                final IHitPayload hit = reader.hit(i);
+                for (FaintParticleTrigger trigger : triggers) {
+                    trigger.runTrigger(hit);
+                }
+            }
+        } else {
+            IHitPayload[] batch = new IHitPayload[batchSize];
+            for (int i = 0; i < numHits; i += batchSize) {
+                final int len = Math.min(batchSize, numHits - i);
+                reader.views(i, batch, len);
+                for (FaintParticleTrigger trigger : triggers) {
+                    trigger.runTrigger(batch, 0, len);
+                }
+            }
+        }
+        for (FaintParticleTrigger trigger : triggers) {
+            trigger.flush();
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Replay every hit in a file.
+     *
+     * @param reader mapped hit file
+     * @param domRegistry registry of the detector which recorded the hits
+     * @param params trigger parameters as <tt>name=value</tt>
+     * @param batchSize hits per runTrigger() call, 0 for one at a time
+     *
+     * @return triggers and timing
+     *
+     * @throws Exception if the trigger cannot be configured or rejects a
+     *                   hit
+     */
+    static Result replay(HitStreamReader reader,
+                         SyntheticDOMRegistry domRegistry,
+                         List<String> params, int batchSize)
+        throws Exception
+    {
+        ReplayTrigger trigger = newTrigger(domRegistry, params);
+        final long nanos =
+            feed(Collections.singletonList(trigger), reader, batchSize);
+
+        trigger.resetAlgorithm();
+        return new Result(trigger.log, reader.size(), nanos);
+    }
+
+    /**
+     * Replay every hit in a file through the baseline trigger, one hit at
+     * a time.
+     *
+     * @param reader mapped hit file
+     * @param domRegistry registry of the detector which recorded the hits
+     * @param params trigger parameters as <tt>name=value</tt>; those the
+     *               baseline does not know are skipped
+     *
+     * @return triggers and timing
+     *
+     * @throws Exception if the trigger cannot be configured or rejects a
+     *                   hit
+     */
+    static Result replayBaseline(HitStreamReader reader,
+                                 SyntheticDOMRegistry domRegistry,
+                                 List<String> params)
+        throws Exception
+    {
+        BaselineTrigger trigger = new BaselineTrigger(domRegistry);
+        for (String param : params) {
+            final int eq = param.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("Bad parameter \"" +
+                                                   param + "\"");
+            }
+            try {
+                trigger.addParameter(param.substring(0, eq),
+                                     param.substring(eq + 1));
+            } catch (UnknownParameterException upe) {
+                System.out.println("   Reference ignores " + param);
+            }
+        }
+
+        final int numHits = reader.size();
+        final long start = System.nanoTime();
+        for (int i = 0; i < numHits; i++) {
+            trigger.runTrigger(reader.hit(i));
+        }
+        trigger.flush();
+        final long nanos = System.nanoTime() - start;
+
+        trigger.resetAlgorithm();
+        return new Result(trigger.log, numHits, nanos);
+    }
+
+    /**
+     * Replay every hit in a file once for several parameter sets.  Sets
+     * with the same time_window and time_window_separation are evaluated
+     * as one sweep; each group is fed the hits once.
+     *
+     * @param reader mapped hit file
+     * @param domRegistry registry of the detector which recorded the hits
+     * @param configs trigger parameters of each set
+     * @param batchSize hits per runTrigger() call, 0 for one at a time
+     *
+     * @return triggers of each set, all with the total time
+     *
+     * @throws Exception if a trigger cannot be configured or rejects a hit
+     */
+    static Result[] sweep(HitStreamReader reader,
+                          SyntheticDOMRegistry domRegistry,
+                          List<List<String>> configs, int batchSize)
+        throws Exception
+    {
+        ReplayTrigger[] triggers = new ReplayTrigger[configs.size()];
+        ArrayList<ReplayTrigger> leads = new ArrayList<ReplayTrigger>();
+        for (int c = 0; c < triggers.length; c++) {
+            triggers[c] = newTrigger(domRegistry, configs.get(c));
+
+            ReplayTrigger lead = null;
+            for (ReplayTrigger t : leads) {
+                if (t.time_window == triggers[c].time_window &&
+                    t.time_window_separation ==
+                    triggers[c].time_window_separation)
+                {
+                    lead = t;
+                    break;
+                }
+            }
+            if (lead == null) {
+                leads.add(triggers[c]);
+            } else {
+                lead.addSweepConfiguration(triggers[c]);
+            }
+        }
+
+        final long nanos = feed(leads, reader, batchSize);
+
+        Result[] results = new Result[triggers.length];
+        for (int c = 0; c < triggers.length; c++) {
+            results[c] = new Result(triggers[c].log, reader.size(), nanos);
+        }
+        for (ReplayTrigger lead : leads) {
+            lead.resetAlgorithm();
+        }
+        return results;
+    }
+
+    /**
+     * Read parameter sets, one per line as <tt>name=value</tt> words.
+     * Blank lines and lines starting with <tt>#</tt> are skipped.
+     */
+    private static List<List<String>> readConfigs(File file)
+        throws IOException
+    {
+        ArrayList<List<String>> configs = new ArrayList<List<String>>();
+
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                configs.add(Arrays.asList(line.split("\\s+")));
+            }
+        } finally {
+            in.close();
+        }
+        return configs;
+    }
+
+    /**
+     * Report the first trigger which differs from a reference run.
+     *
+     * @return <tt>true</tt> if the triggers match
+     */
+    private static boolean matches(Result result, Result ref)
+    {
+        final int diff = result.log.firstDifference(ref.log);
+        if (diff >= 0) {
+            System.out.println("Trigger #" + diff + " differs: " +
+                               result.log.describe(diff) +
+                               " != reference " + ref.log.describe(diff));
+            return false;
+        }
+        return true;
+    }
+
+    private static void usage()
+    {
+        System.err.println("Usage: TriggerReplay write FILE DURATION_NS" +
+                           " [SEED [TRACK_RATE_HZ]]");
+        System.err.println("       TriggerReplay run|check FILE [-batch N]" +
+                           " [name=value ...]");
+        System.err.println("       TriggerReplay sweep FILE CONFIG_FILE" +
+                           " [-batch N] [-check]");
+        System.exit(2);
+    }
+
+    public static void main(String[] args)
+        throws Exception
+    {
+        if (args.length < 2) {
+            usage();
+        }
+
+        final String mode = args[0];
+        final File file = new File(args[1]);
+        final SyntheticDetector detector = new SyntheticDetector();
+
+        if (mode.equals("write")) {
+            if (args.length < 3) {
+                usage();
+            }
+            final long durationNs = Long.parseLong(args[2]);
+            final long seed = (args.length > 3 ? Long.parseLong(args[3]) :
+                               12345L);
+            final double trackRate =
+                (args.length > 4 ? Double.parseDouble(args[4]) : 1000.0);
+
+            SyntheticHitStream stream =
+                new SyntheticHitStream(detector, seed, durationNs, 500.0,
+                                       650.0, 0.3, trackRate,
+                                       BenchmarkTrigger.TRACK_VELOCITY, 60.0);
+            HitStreamWriter writer = new HitStreamWriter(file);
+            try {
+                writer.write(stream, AbstractTrigger.SPE_HIT);
+            } finally {
+                writer.close();
+            }
+            System.out.println("Wrote " + writer.size() + " hits to " + file);
+            return;
+        }
+
+        if (mode.equals("sweep")) {
+            if (args.length < 3) {
+                usage();
+            }
+            int batchSize = 0;
+            boolean check = false;
+            for (int i = 3; i < args.length; i++) {
+                if (args[i].equals("-batch") && i + 1 < args.length) {
+                    batchSize = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-check")) {
+                    check = true;
+                } else {
+                    usage();
+                }
+            }
+
+            HitStreamReader reader = new HitStreamReader(file);
+            List<List<String>> configs = readConfigs(new File(args[2]));
+
+            SyntheticDOMRegistry domRegistry =
+                new SyntheticDOMRegistry(detector);
+            Result[] results = sweep(reader, domRegistry, configs, batchSize);
+            System.out.println("Sweep of " + configs.size() +
+                               " configurations: " +
+                               (results.length == 0 ? "nothing to do" :
+                                (results[0].nanos / 1000000L) + " ms"));
+
+            boolean ok = true;
+            for (int c = 0; c < results.length; c++) {
+                System.out.println("#" + c + " " + configs.get(c) + ": " +
+                                   results[c].log.size() + " triggers with " +
+                                   results[c].log.numHits() + " hits");
+                if (check) {
+                    Result ref =
+                        replayBaseline(reader, domRegistry, configs.get(c));
+                    System.out.println("   Reference: " + ref);
+                    ok &= matches(results[c], ref);
+                }
+            }
+            if (!ok) {
+                System.exit(1);
+            }
+            if (check) {
+                System.out.println("Triggers match the references");
+            }
+            return;
+        }
+
+        if (!mode.equals("run") && !mode.equals("check")) {
+            usage();
+        }
+
+        int batchSize = 0;
+        ArrayList<String> params = new ArrayList<String>();
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equals("-batch") && i + 1 < args.length) {
+                batchSize = Integer.parseInt(args[++i]);
+            } else {
+                params.add(args[i]);
+            }
+        }
+
+        HitStreamReader reader = new HitStreamReader(file);
+        SyntheticDOMRegistry domRegistry = new SyntheticDOMRegistry(detector);
+
+        Result result = replay(reader, domRegistry, params, batchSize);
+        System.out.println("Replay: " + result);
+
+        if (mode.equals("check")) {
+            Result ref = replayBaseline(reader, domRegistry, params);
+            System.out.println("Reference: " + ref);
+
+            if (!matches(result, ref)) {
+                System.exit(1);
+            }
+            System.out.println("Triggers match the reference");
+        }
+    }
+}
@@ -0,0 +1,574 @@
+package icecube.daq.trigger.algorithm;
+
+import icecube.daq.payload.IHitPayload;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Checks the code paths of FaintParticleTrigger which the default
+ * parameters do not reach against BaselineFaintParticleTrigger.
+ *
+ * <pre>
+ * TriggerSelfCheck [FILE]
+ * </pre>
+ *
+ * FILE is a hit file written by <tt>TriggerReplay write</tt>; without it
+ * a short synthetic stream is written to a temporary file.  Every check
+ * replays the hits and fails if the triggers differ from a reference run
+ * with the same cuts:
+ * <ul>
+ * <li>parameter sets steering the hits through the sliding window, the
+ *     triple merge, the direction histograms, incremental doubles, the
+ *     window pipeline and the work budget, fed one hit at a time and in
+ *     batches.  With defer_overloaded_windows every window which runs out
+ *     of budget is evaluated again, so the triggers must not change;
+ *     the check also fails if no window ran out of budget.
+ * <li>watermarks sent between the hits, in place and pipelined.
+ * <li>a sweep of several parameter sets sharing a time window.
+ * <li>two runs sharing a geometry cache directory, the first writing the
+ *     pair files in the background and the second reading them.
+ * <li>an audit file, whose records must match the windows evaluated, and
+ *     a second run which must write a numbered file instead of replacing
+ *     the first one.  A run with a work budget must write one record for
+ *     each deferred window.
+ * <li>windows holding more than 127 hits, where the baseline compares
+ *     boxed hit indices with == and misses triples.  These triggers must
+ *     differ from the reference in exactly those windows.
+ * </ul>
+ * The process exits with status 1 if any check fails.
+ */
+public final class TriggerSelfCheck
+{
+    /** Length of the synthetic stream written when no file is given */
+    private static final long DEFAULT_DURATION_NS = 20000000L;
+
+    /** Hits per runTrigger() call in the batched replays */
+    private static final int BATCH_SIZE = 100;
+
+    /** Hits between two watermarks */
+    private static final int WATERMARK_INTERVAL = 50;
+
+    /** Parameter sets replayed one at a time and in batches */
+    private static final String[][] CONFIGS = {
+        { },
+        { "time_window=1000", "time_window_separation=100" },
+        { "double_min=3", "triple_min=1" },
+        { "use_dc_version=true", "azimuth_histogram_min=2",
+          "zenith_histogram_min=2", "histogram_binning=20" },
+        { "incremental_doubles=true" },
+        { "incremental_doubles=true", "use_dc_version=true",
+          "azimuth_histogram_min=2", "zenith_histogram_min=2" },
+        { "time_window=1000", "time_window_separation=500",
+          "double_velocity_max=100000", "incremental_doubles=true" },
+        { "pipeline_threads=3" },
+        { "pipeline_threads=2", "use_dc_version=true",
+          "azimuth_histogram_min=2", "zenith_histogram_min=2" },
+    };
+
+    /**
+     * Parameter sets which must run out of budget; the windows which do
+     * are deferred, so the triggers still match the reference
+     */
+    private static final String[][] BUDGET_CONFIGS = {
+        { "window_pair_budget=20", "defer_overloaded_windows=true" },
+        { "window_pair_budget=20", "defer_overloaded_windows=true",
+          "incremental_doubles=true" },
+        { "window_pair_budget=20", "defer_overloaded_windows=true",
+          "pipeline_threads=2" },
+        { "window_pair_budget=5", "defer_overloaded_windows=true",
+          "use_dc_version=true", "azimuth_histogram_min=2",
+          "zenith_histogram_min=2" },
+    };
+
+    /** Parameter sets evaluated as one sweep */
+    private static final String[][] SWEEP_CONFIGS = {
+        { },
+        { "double_min=3", "triple_min=1" },
+        { "double_velocity_min=10000", "double_velocity_max=200000",
+          "slcfraction_min=0.1" },
+        { "use_dc_version=true", "azimuth_histogram_min=2",
+          "zenith_histogram_min=2", "histogram_binning=20" },
+        { "window_pair_budget=10", "defer_overloaded_windows=true" },
+    };
+
+    /** Hits which form no double, put in each crowded window */
+    private static final int CROWD_HITS = 140;
+
+    /** Windows of each kind in the crowded stream */
+    private static final int CROWDED_WINDOWS = 20;
+
+    /** Ticks between two crowded windows */
+    private static final long CROWDED_SPACING = 10000000L;
+
+    /** Ticks between two hits of the triple in a crowded window */
+    private static final long TRIPLE_SPACING = 3000L;
+
+    /** Parameter sets replayed on the crowded stream */
+    private static final String[][] CROWDED_CONFIGS = {
+        { "hit_max=200", "triple_min=0" },
+        { "hit_max=200", "triple_min=0", "incremental_doubles=true" },
+        { "hit_max=200", "triple_min=0", "pipeline_threads=2" },
+    };
+
+    private final HitStreamReader reader;
+    private final SyntheticDOMRegistry domRegistry;
+
+    private int numChecks;
+    private int numFailed;
+
+    private TriggerSelfCheck(HitStreamReader reader,
+                             SyntheticDOMRegistry domRegistry)
+    {
+        this.reader = reader;
+        this.domRegistry = domRegistry;
+    }
+
+    /**
+     * Count a check and report it if it failed.
+     *
+     * @return <tt>ok</tt>
+     */
+    private boolean report(String name, boolean ok, String detail)
+    {
+        numChecks++;
+        if (ok) {
+            System.out.println("ok      " + name);
+        } else {
+            numFailed++;
+            System.out.println("FAILED  " + name + ": " + detail);
+        }
+        return ok;
+    }
+
+    /**
+     * Compare the triggers of a run with those of the reference run.
+     */
+    private boolean compare(String name, TriggerReplay.TriggerLog log,
+                            TriggerReplay.Result ref)
+    {
+        final int diff = log.firstDifference(ref.log);
+        return report(name, diff < 0,
+                      diff < 0 ? null :
+                      "trigger #" + diff + " is " + log.describe(diff) +
+                      ", reference " + ref.log.describe(diff));
+    }
+
+    private TriggerReplay.Result reference(List<String> params)
+        throws Exception
+    {
+        return TriggerReplay.replayBaseline(reader, domRegistry, params);
+    }
+
+    /**
+     * Replay a parameter set one hit at a time and in batches.
+     *
+     * @return monitoring counters of the run fed one hit at a time
+     */
+    private Map<String, Object> checkReplay(List<String> params,
+                                            TriggerReplay.Result ref)
+        throws Exception
+    {
+        TriggerReplay.ReplayTrigger trigger =
+            TriggerReplay.newTrigger(domRegistry, params);
+        TriggerReplay.feed(Collections.singletonList(trigger), reader, 0);
+        Map<String, Object> map = trigger.getTriggerMonitorMap();
+        trigger.resetAlgorithm();
+        compare(params.toString(), trigger.log, ref);
+
+        TriggerReplay.Result batched =
+            TriggerReplay.replay(reader, domRegistry, params, BATCH_SIZE);
+        compare(params + " in batches", batched.log, ref);
+        return map;
+    }
+
+    /**
+     * Replay a parameter set, telling the trigger before every few hits
+     * that no earlier hit will arrive.
+     */
+    private void checkWatermarks(List<String> params,
+                                 TriggerReplay.Result ref)
+        throws Exception
+    {
+        TriggerReplay.ReplayTrigger trigger =
+            TriggerReplay.newTrigger(domRegistry, params);
+        for (int i = 0; i < reader.size(); i++) {
+            final IHitPayload hit = reader.hit(i);
+            if (i > 0 && i % WATERMARK_INTERVAL == 0) {
+                trigger.advanceTime(hit.getUTCTime());
+            }
+            trigger.runTrigger(hit);
+        }
+        trigger.flush();
+        trigger.resetAlgorithm();
+        compare(params + " with watermarks", trigger.log, ref);
+    }
+
+    private void checkSweep()
+        throws Exception
+    {
+        ArrayList<List<String>> configs = new ArrayList<List<String>>();
+        for (String[] config : SWEEP_CONFIGS) {
+            configs.add(Arrays.asList(config));
+        }
+
+        TriggerReplay.Result[] results =
+            TriggerReplay.sweep(reader, domRegistry, configs, 0);
+        for (int c = 0; c < results.length; c++) {
+            compare("sweep " + configs.get(c), results[c].log,
+                    reference(configs.get(c)));
+        }
+    }
+
+    /**
+     * Replay twice with the same geometry cache directory.  The first run
+     * writes the pair files in the background and uses a plain table until
+     * they are ready, the second one maps the files written by the first.
+     */
+    private void checkGeometryCache(File tmpDir, TriggerReplay.Result ref)
+        throws Exception
+    {
+        File dir = new File(tmpDir, "geometry");
+        List<String> params =
+            Collections.singletonList("geometry_cache_dir=" + dir);
+
+        TriggerReplay.Result first =
+            TriggerReplay.replay(reader, domRegistry, params, 0);
+        compare("geometry cache, new files", first.log, ref);
+
+        Future<MappedGeometryTable> table =
+            MappedGeometryTable.open(dir, domRegistry);
+        try {
+            table.get();
+        } finally {
+            MappedGeometryTable.release(table);
+        }
+
+        String[] files = dir.list();
+        report("geometry cache files written", files != null &&
+               files.length > 0, "nothing in " + dir);
+
+        TriggerReplay.Result second =
+            TriggerReplay.replay(reader, new SyntheticDOMRegistry(
+                                     new SyntheticDetector()), params, 0);
+        compare("geometry cache, mapped files", second.log, ref);
+    }
+
+    /**
+     * Replay with an audit file and read the records back.  There must be
+     * one record per evaluated window, and the passing ones must be the
+     * windows which passed the last cut.  A second run must not replace
+     * the file.  A run which defers windows must write one record for each
+     * of them, flagged as both overloaded and deferred.
+     */
+    private void checkAudit(File tmpDir, TriggerReplay.Result ref)
+        throws Exception
+    {
+        File file = new File(tmpDir, "audit");
+        List<String> params = auditParams(file, new String[0]);
+        if (checkAuditRecords("audit", params, file, ref) < 0) {
+            return;
+        }
+
+        final long length = file.length();
+        TriggerReplay.replay(reader, domRegistry, params, 0);
+        File next = new File(file.getPath() + ".1");
+        report("audit file kept by the next run",
+               file.length() == length && next.length() == length,
+               "lengths " + file.length() + " and " + next.length() +
+               ", first run wrote " + length);
+
+        File budgetFile = new File(tmpDir, "audit-budget");
+        final String[] budget = BUDGET_CONFIGS[0];
+        final long deferred =
+            checkAuditRecords("audit with budget",
+                              auditParams(budgetFile, budget), budgetFile,
+                              reference(Arrays.asList(budget)));
+        report("audit with budget deferred windows", deferred > 0,
+               "no deferred records");
+    }
+
+    private static List<String> auditParams(File file, String[] config)
+    {
+        ArrayList<String> params = new ArrayList<String>();
+        params.add("audit_file=" + file);
+        params.add("audit_buffer_records=1048576");
+        params.addAll(Arrays.asList(config));
+        return params;
+    }
+
+    /**
+     * Replay with an audit file and check its records against the
+     * monitoring counters.
+     *
+     * @return number of deferred records, or -1 if the file is bad
+     */
+    private long checkAuditRecords(String name, List<String> params,
+                                   File file, TriggerReplay.Result ref)
+        throws Exception
+    {
+        TriggerReplay.ReplayTrigger trigger =
+            TriggerReplay.newTrigger(domRegistry, params);
+        TriggerReplay.feed(Collections.singletonList(trigger), reader, 0);
+        Map<String, Object> map = trigger.getTriggerMonitorMap();
+        trigger.resetAlgorithm();
+        compare(name + " run", trigger.log, ref);
+
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        final boolean header =
+            buf.remaining() >= DecisionAuditLog.HEADER_BYTES &&
+            buf.getInt() == DecisionAuditLog.MAGIC &&
+            buf.getInt() == DecisionAuditLog.VERSION &&
+            buf.getInt() == DecisionAuditLog.RECORD_BYTES &&
+            buf.remaining() % DecisionAuditLog.RECORD_BYTES == 0;
+        if (!report(name + " header", header, "bad header or length " +
+                    buf.limit()))
+        {
+            return -1;
+        }
+
+        long passed = 0;
+        long deferred = 0;
+        long deferredOnly = 0;
+        final int numRecords =
+            buf.remaining() / DecisionAuditLog.RECORD_BYTES;
+        for (int r = 0; r < numRecords; r++) {
+            final int base = DecisionAuditLog.HEADER_BYTES +
+                r * DecisionAuditLog.RECORD_BYTES;
+            final int flags =
+                buf.getInt(base + DecisionAuditLog.RECORD_BYTES - 4);
+            if ((flags & DecisionAuditLog.PASSED) != 0) {
+                passed++;
+            }
+            if ((flags & DecisionAuditLog.DEFERRED) != 0) {
+                deferred++;
+                if ((flags & DecisionAuditLog.OVERLOADED) == 0) {
+                    deferredOnly++;
+                }
+            }
+        }
+
+        final long windows = (Long) map.get("WindowsEvaluated");
+        final long dropped = (Long) map.get("AuditRecordsDropped");
+        report(name + " records", dropped == 0 && numRecords == windows,
+               numRecords + " records for " + windows + " windows, " +
+               dropped + " dropped");
+        final long triplesPassed = (Long) map.get("TriplesPassed");
+        report(name + " passing records", passed == triplesPassed,
+               passed + " passing records for " + triplesPassed +
+               " windows passing the triple cut");
+        final long deferredWindows = (Long) map.get("DeferredWindows");
+        report(name + " deferred records",
+               deferred == deferredWindows && deferredOnly == 0,
+               deferred + " deferred records for " + deferredWindows +
+               " deferred windows, " + deferredOnly + " not overloaded");
+        return deferred;
+    }
+
+    /**
+     * Replay windows holding a triple and CROWD_HITS other hits.  The
+     * baseline misses every triple whose middle hit has a window index
+     * above 127, so it must only trigger on the windows which put the
+     * triple first, while this trigger must trigger on every window.
+     */
+    private void checkCrowded(File tmpDir)
+        throws Exception
+    {
+        File file = new File(tmpDir, "crowded");
+        writeCrowdedStream(file);
+        HitStreamReader crowded = new HitStreamReader(file);
+
+        final long windowHits = CROWD_HITS + 3;
+        for (String[] config : CROWDED_CONFIGS) {
+            List<String> params = Arrays.asList(config);
+            TriggerReplay.Result ref =
+                TriggerReplay.replayBaseline(crowded, domRegistry, params);
+            report("crowded " + params + " reference",
+                   ref.log.size() == CROWDED_WINDOWS &&
+                   ref.log.numHits() == CROWDED_WINDOWS * windowHits,
+                   ref.log.size() + " triggers with " + ref.log.numHits() +
+                   " hits, expected " + CROWDED_WINDOWS + " with " +
+                   CROWDED_WINDOWS * windowHits);
+
+            TriggerReplay.Result result =
+                TriggerReplay.replay(crowded, domRegistry, params, 0);
+            report("crowded " + params,
+                   result.log.size() == 2 * CROWDED_WINDOWS &&
+                   result.log.numHits() == 2 * CROWDED_WINDOWS * windowHits,
+                   result.log.size() + " triggers with " +
+                   result.log.numHits() + " hits, expected " +
+                   2 * CROWDED_WINDOWS + " with " +
+                   2 * CROWDED_WINDOWS * windowHits);
+        }
+    }
+
+    private void run(File tmpDir)
+        throws Exception
+    {
+        for (String[] config : CONFIGS) {
+            List<String> params = Arrays.asList(config);
+            TriggerReplay.Result ref = reference(params);
+            checkReplay(params, ref);
+            if (config.length == 0 || params.get(0).startsWith("pipeline")) {
+                checkWatermarks(params, ref);
+            }
+        }
+
+        for (String[] config : BUDGET_CONFIGS) {
+            List<String> params = Arrays.asList(config);
+            Map<String, Object> map = checkReplay(params, reference(params));
+            final long overloaded = (Long) map.get("OverloadedWindows");
+            final long dropped = (Long) map.get("DroppedWindows");
+            report(params + " ran out of budget",
+                   overloaded > 0 && dropped == 0,
+                   overloaded + " windows out of budget, " + dropped +
+                   " dropped");
+        }
+
+        checkSweep();
+
+        TriggerReplay.Result ref = reference(Collections.<String>emptyList());
+        checkGeometryCache(tmpDir, ref);
+        checkAudit(tmpDir, ref);
+        checkCrowded(tmpDir);
+    }
+
+    /**
+     * Delete a temporary directory and everything in it.
+     */
+    private static void delete(File file)
+    {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                delete(f);
+            }
+        }
+        if (!file.delete() && file.exists()) {
+            System.err.println("Cannot delete " + file);
+        }
+    }
+
+    /**
+     * Write a short synthetic hit stream.
+     */
+    private static void writeStream(File file, SyntheticDetector detector)
+        throws IOException
+    {
+        SyntheticHitStream stream =
+            new SyntheticHitStream(detector, 12345L, DEFAULT_DURATION_NS,
+                                   500.0, 650.0, 0.3, 1000.0,
+                                   BenchmarkTrigger.TRACK_VELOCITY, 60.0);
+        HitStreamWriter writer = new HitStreamWriter(file);
+        try {
+            writer.write(stream, AbstractTrigger.SPE_HIT);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Write a stream of crowded windows.  Each one holds CROWD_HITS hits
+     * on two DOMs of the first strings, spread over 70 ns so that no two
+     * of them form a double, and a triple of SLC hits on three adjacent
+     * DOMs of the last in-ice string, 300 ns apart.  The first CROWDED_WINDOWS windows
+     * put the triple after the other hits, the rest put it before them.
+     * A last lone hit closes the last window.
+     */
+    private static void writeCrowdedStream(File file)
+        throws IOException
+    {
+        final int tripleDom = (SyntheticDetector.IN_ICE_STRINGS - 1) *
+            SyntheticDetector.DOMS_PER_STRING + 10;
+
+        HitStreamWriter writer = new HitStreamWriter(file);
+        try {
+            for (int w = 0; w < 2 * CROWDED_WINDOWS; w++) {
+                final boolean tripleFirst = w >= CROWDED_WINDOWS;
+                long time = (w + 1) * CROWDED_SPACING;
+                if (tripleFirst) {
+                    time = writeTriple(writer, time, tripleDom);
+                }
+                for (int i = 0; i < CROWD_HITS; i++) {
+                    final int dom =
+                        (i / 2) * SyntheticDetector.DOMS_PER_STRING +
+                        (i % 2) * (SyntheticDetector.DOMS_PER_STRING / 2);
+                    writer.write(time, SyntheticDOMRegistry.mainboardId(dom),
+                                 false, AbstractTrigger.SPE_HIT);
+                    time += 5L;
+                }
+                if (!tripleFirst) {
+                    writeTriple(writer, time + TRIPLE_SPACING / 10, tripleDom);
+                }
+            }
+
+            //a window is only evaluated once a later hit arrives
+            writer.write((2 * CROWDED_WINDOWS + 1) * CROWDED_SPACING,
+                         SyntheticDOMRegistry.mainboardId(0), false,
+                         AbstractTrigger.SPE_HIT);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Write three SLC hits on adjacent DOMs, forming three doubles.  They
+     * are the only SLC hits, so the window passes slcfraction_min=0.
+     *
+     * @return time after the last hit
+     */
+    private static long writeTriple(HitStreamWriter writer, long time,
+                                    int firstDom)
+        throws IOException
+    {
+        for (int i = 0; i < 3; i++) {
+            writer.write(time + i * TRIPLE_SPACING,
+                         SyntheticDOMRegistry.mainboardId(firstDom + i),
+                         true, AbstractTrigger.SPE_HIT);
+        }
+        return time + 2 * TRIPLE_SPACING + TRIPLE_SPACING / 10;
+    }
+
+    public static void main(String[] args)
+        throws Exception
+    {
+        if (args.length > 1) {
+            System.err.println("Usage: TriggerSelfCheck [FILE]");
+            System.exit(2);
+        }
+
+        final SyntheticDetector detector = new SyntheticDetector();
+        final File tmpDir =
+            Files.createTempDirectory("fpt-selfcheck").toFile();
+        int failed;
+        try {
+            File file;
+            if (args.length > 0) {
+                file = new File(args[0]);
+            } else {
+                file = new File(tmpDir, "hits");
+                writeStream(file, detector);
+            }
+
+            TriggerSelfCheck check =
+                new TriggerSelfCheck(new HitStreamReader(file),
+                                     new SyntheticDOMRegistry(detector));
+            check.run(tmpDir);
+            System.out.println(check.numChecks + " checks, " +
+                               check.numFailed + " failed");
+            failed = check.numFailed;
+        } finally {
+            delete(tmpDir);
+        }
+
+        System.exit(failed == 0 ? 0 : 1);
+    }
+}
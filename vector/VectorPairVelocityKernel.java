@@ -0,0 +1,66 @@
+package icecube.daq.trigger.algorithm;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Pair velocity cut using the incubating Vector API.  Each block of pairs
+ * is converted, divided, scaled and compared lane by lane with the same
+ * IEEE operations as the scalar kernel, and the pass mask is compacted
+ * into pair indices.
+ *
+ * This class needs <tt>--add-modules jdk.incubator.vector</tt> to compile
+ * and to run, so it is kept out of the main sources and compiled into the
+ * same classes only when the module is wanted.  PairVelocityKernel loads
+ * it by name and uses the scalar kernel when it is missing.
+ */
+final class VectorPairVelocityKernel
+    extends PairVelocityKernel
+{
+    private static final VectorSpecies<Double> DOUBLES =
+        DoubleVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Long> LONGS =
+        VectorSpecies.of(long.class, DOUBLES.vectorShape());
+
+    @Override
+    int select(double[] distance, long[] timeDiff, int num,
+               double velocityMin, double velocityMax, double kmPerSec,
+               int[] passed)
+    {
+        int numPassed = 0;
+
+        final int bound = DOUBLES.loopBound(num);
+        int i = 0;
+        for (; i < bound; i += DOUBLES.length()) {
+            DoubleVector dist = DoubleVector.fromArray(DOUBLES, distance, i);
+            DoubleVector timediff = (DoubleVector)
+                LongVector.fromArray(LONGS, timeDiff, i)
+                .lanewise(VectorOperators.ABS)
+                .convert(VectorOperators.L2D, 0);
+            DoubleVector vel = dist.div(timediff).mul(kmPerSec);
+
+            VectorMask<Double> pass =
+                vel.compare(VectorOperators.GT, velocityMin)
+                .and(vel.compare(VectorOperators.LT, velocityMax));
+
+            long bits = pass.toLong();
+            while (bits != 0) {
+                passed[numPassed++] = i + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+            }
+        }
+
+        for (; i < num; i++) {
+            double timediff = Math.abs(timeDiff[i]);
+            double vel = distance[i]/timediff*kmPerSec;
+            if (vel>velocityMin && vel < velocityMax) {
+                passed[numPassed++] = i;
+            }
+        }
+
+        return numPassed;
+    }
+}